@@ -59,3 +59,12 @@ java {
         languageVersion = JavaLanguageVersion.of(21)
     }
 }
+
+// LockstepEngine uses the incubating Vector API
+tasks.withType<JavaCompile>().configureEach {
+    options.compilerArgs.add("--add-modules=jdk.incubator.vector")
+}
+
+tasks.withType<Test>().configureEach {
+    jvmArgs("--add-modules=jdk.incubator.vector")
+}
@@ -0,0 +1,120 @@
+package net.pistonmaster.ijvm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Splits linked method bodies back into instructions.
+ */
+public class BytecodeDecoder {
+    private final ProgramMemory methodArea;
+    private final TreeMap<Integer, String> methodsByAddress = new TreeMap<>();
+
+    public BytecodeDecoder(ProgramDefinition definition) {
+        this(definition.methodArea(), definition.methods());
+    }
+
+    public BytecodeDecoder(byte[] methodArea, Map<String, Integer> methods) {
+        this.methodArea = new ProgramMemory(methodArea);
+        for (var method : methods.entrySet()) {
+            methodsByAddress.put(method.getValue(), method.getKey());
+        }
+    }
+
+    /**
+     * @param address Any address inside a method, including its header.
+     * @return The name of the method containing the address, or {@code null} if there is none.
+     */
+    public String methodAt(int address) {
+        var entry = methodsByAddress.floorEntry(address);
+        return entry == null || address >= methodEnd(entry.getKey()) ? null : entry.getValue();
+    }
+
+    /**
+     * @param methodAddress The address of a method header.
+     * @return The first address behind the method body.
+     */
+    public int methodEnd(int methodAddress) {
+        var next = methodsByAddress.higherKey(methodAddress);
+        return next == null ? methodArea.storage.length : next;
+    }
+
+    public List<DecodedInstruction> decodeMethod(int methodAddress) {
+        return decode(methodAddress + 4, methodEnd(methodAddress));
+    }
+
+    public List<DecodedInstruction> decode(int start, int end) {
+        List<DecodedInstruction> instructions = new ArrayList<>();
+        var address = start;
+        while (address < end) {
+            var instruction = decodeAt(address);
+            instructions.add(instruction);
+            address += instruction.length();
+        }
+
+        return instructions;
+    }
+
+    public DecodedInstruction decodeAt(int address) {
+        var instruction = Instruction.fromOpcode(methodArea.readByte(address));
+        if (instruction != Instruction.WIDE) {
+            return new DecodedInstruction(address, instruction, false, instruction.getLength(false),
+                    operand(address, instruction, false), increment(address, instruction, false));
+        }
+
+        var widened = Instruction.fromOpcode(methodArea.readByte(address + 1));
+        return new DecodedInstruction(address, widened, true, 1 + widened.getLength(true),
+                operand(address + 1, widened, true), increment(address + 1, widened, true));
+    }
+
+    private int operand(int address, Instruction instruction, boolean wide) {
+        return switch (instruction) {
+            case BIPUSH -> methodArea.readByte(address + 1);
+            case GOTO, IFEQ, IFLT, IF_ICMPEQ -> methodArea.readOffset(address + 1);
+            case IINC, ILOAD, ISTORE -> methodArea.readVarNum(address + 1, wide);
+            case INVOKEVIRTUAL, SPAWN -> methodArea.readDisp(address + 1);
+            case LDC_W -> methodArea.readIndex(address + 1);
+            default -> 0;
+        };
+    }
+
+    private int increment(int address, Instruction instruction, boolean wide) {
+        return instruction == Instruction.IINC ? methodArea.readConst(address + (wide ? 3 : 2)) : 0;
+    }
+
+    /**
+     * A single decoded instruction.
+     *
+     * @param address     Address of the first byte, which is the WIDE prefix for widened instructions.
+     * @param instruction The instruction, never WIDE itself.
+     * @param wide        Whether the instruction is prefixed by WIDE.
+     * @param length      Length in bytes including a WIDE prefix.
+     * @param operand     The first operand: the value, offset, variable number, dispatch or constant index.
+     * @param increment   The constant of IINC, zero for every other instruction.
+     */
+    public record DecodedInstruction(int address, Instruction instruction, boolean wide, int length, int operand,
+                                     int increment) {
+        /**
+         * @return The address of the opcode, which differs from {@link #address()} for widened instructions.
+         */
+        public int opcodeAddress() {
+            return wide ? address + 1 : address;
+        }
+
+        /**
+         * @return The absolute branch target of GOTO, IFEQ, IFLT and IF_ICMPEQ.
+         */
+        public int branchTarget() {
+            return opcodeAddress() + operand;
+        }
+
+        public boolean isBranch() {
+            return switch (instruction) {
+                case GOTO, IFEQ, IFLT, IF_ICMPEQ -> true;
+                default -> false;
+            };
+        }
+    }
+}
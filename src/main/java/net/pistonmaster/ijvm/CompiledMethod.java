@@ -0,0 +1,270 @@
+package net.pistonmaster.ijvm;
+
+import java.util.Arrays;
+
+/**
+ * Tier 1 form of a method, the bytecode pre-decoded into arrays.
+ * <p>
+ * Variable numbers become byte offsets, LDC_W constants are read at compile time and branch targets are
+ * instruction indices, so execution does no decoding. Calls, returns and traps are left to the processor:
+ * {@link #execute(Processor)} stops in front of them.
+ * <p>
+ * Loops found by {@link LoopIdiomRecognizer} become a single superinstruction at their header that applies
+ * the closed form of the loop and continues behind it.
+ */
+public class CompiledMethod {
+    private final String name;
+    private final int codeStart;
+    // Instruction index by address relative to the code start, -1 inside an instruction
+    private final int[] indexByOffset;
+    private final Op[] ops;
+    private final int[] operands;
+    private final int[] increments;
+    private final int[] targets;
+    private final int[] addresses;
+    private final LoopIdiom[] loops;
+    // Instructions replaced by a loop superinstruction, run instead if the loop never terminates
+    private final Op[] replacedOps;
+
+    private CompiledMethod(String name, int codeStart, int codeLength, int instructionCount) {
+        this.name = name;
+        this.codeStart = codeStart;
+        this.indexByOffset = new int[codeLength];
+        Arrays.fill(indexByOffset, -1);
+
+        // One extra EXIT for running off the end of the method
+        this.ops = new Op[instructionCount + 1];
+        this.operands = new int[instructionCount + 1];
+        this.increments = new int[instructionCount + 1];
+        this.targets = new int[instructionCount + 1];
+        this.addresses = new int[instructionCount + 1];
+        this.loops = new LoopIdiom[instructionCount + 1];
+        this.replacedOps = new Op[instructionCount + 1];
+    }
+
+    public static CompiledMethod compile(ProgramDefinition definition, String method) {
+        return compile(definition, method, MethodAnalysis.analyze(definition, method));
+    }
+
+    /**
+     * Compiles a method from an analysis done earlier, like one stored in a {@link ProgramImage}.
+     */
+    public static CompiledMethod compile(ProgramDefinition definition, String method, MethodAnalysis analysis) {
+        var methodAddress = definition.methods().get(method);
+        if (methodAddress == null) {
+            throw new IllegalArgumentException("Method not found: " + method);
+        }
+
+        var constantPool = new ProgramMemory(definition.constantPool());
+        var instructions = analysis.instructions();
+        var codeStart = methodAddress + 4;
+        var codeEnd = analysis.codeEnd();
+        var compiled = new CompiledMethod(method, codeStart, codeEnd - codeStart, instructions.size());
+
+        for (int i = 0; i < instructions.size(); i++) {
+            compiled.indexByOffset[instructions.get(i).address() - codeStart] = i;
+        }
+
+        for (int i = 0; i < instructions.size(); i++) {
+            var instruction = instructions.get(i);
+            compiled.addresses[i] = instruction.address();
+            compiled.increments[i] = instruction.increment();
+            compiled.ops[i] = switch (instruction.instruction()) {
+                case BIPUSH -> {
+                    compiled.operands[i] = instruction.operand();
+                    yield Op.PUSH;
+                }
+                case LDC_W -> {
+                    compiled.operands[i] = constantPool.readBigEndianInt(instruction.operand() * MemoryPointer.WORD_SIZE);
+                    yield Op.PUSH;
+                }
+                case ILOAD, ISTORE, IINC -> {
+                    compiled.operands[i] = instruction.operand() * MemoryPointer.WORD_SIZE;
+                    yield Op.valueOf(instruction.instruction().name());
+                }
+                case GOTO, IFEQ, IFLT, IF_ICMPEQ -> {
+                    var target = instruction.branchTarget() - codeStart;
+                    if (target < 0 || target >= compiled.indexByOffset.length || compiled.indexByOffset[target] == -1) {
+                        // Leaves the method or jumps into an instruction, let the processor deal with it
+                        yield Op.EXIT;
+                    }
+
+                    compiled.targets[i] = compiled.indexByOffset[target];
+                    yield Op.valueOf(instruction.instruction().name());
+                }
+                case DUP, IADD, IAND, IOR, ISUB, NOP, POP, SWAP -> Op.valueOf(instruction.instruction().name());
+                default -> Op.EXIT;
+            };
+        }
+
+        compiled.ops[instructions.size()] = Op.EXIT;
+        compiled.addresses[instructions.size()] = codeEnd;
+
+        for (var loop : analysis.loops()) {
+            var header = compiled.indexByOffset[loop.header() - codeStart];
+            var exit = loop.exit() == codeEnd ? instructions.size() : compiled.indexByOffset[loop.exit() - codeStart];
+            if (compiled.ops[header] == Op.EXIT || exit == -1) {
+                continue;
+            }
+
+            compiled.replacedOps[header] = compiled.ops[header];
+            compiled.ops[header] = Op.LOOP;
+            compiled.loops[header] = loop;
+            compiled.targets[header] = exit;
+        }
+
+        return compiled;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * @return The number of loops replaced by their closed form.
+     */
+    public int loopCount() {
+        var count = 0;
+        for (var loop : loops) {
+            if (loop != null) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Runs the method from the current program counter of the processor until it reaches an instruction
+     * it leaves to the processor, like INVOKEVIRTUAL or IRETURN. The stack, SP and PC of the processor are
+     * the same as if it had executed the instructions itself.
+     */
+    public void execute(Processor processor) {
+        var stack = processor.stack;
+        var lv = processor.localVariablePointer.currentPointer();
+        var sp = processor.stackPointer.currentPointer();
+        var index = indexAt(processor.methodAreaPointer.currentPointer());
+        // Loop that does not terminate in this execution, ops is shared between threads and calls and stays as it is
+        var endlessLoop = -1;
+
+        while (true) {
+            var op = ops[index];
+            if (op == Op.LOOP) {
+                if (index != endlessLoop && loops[index].execute(stack, lv)) {
+                    index = targets[index];
+                    continue;
+                }
+
+                // Endless loop, run it for real
+                endlessLoop = index;
+                op = replacedOps[index];
+            }
+
+            switch (op) {
+                case PUSH -> {
+                    sp += MemoryPointer.WORD_SIZE;
+                    stack.writeBigEndianInt(sp, operands[index]);
+                    index++;
+                }
+                case DUP -> {
+                    stack.writeBigEndianInt(sp + MemoryPointer.WORD_SIZE, stack.readBigEndianInt(sp));
+                    sp += MemoryPointer.WORD_SIZE;
+                    index++;
+                }
+                case IADD, IAND, IOR, ISUB -> {
+                    var right = stack.readBigEndianInt(sp);
+                    sp -= MemoryPointer.WORD_SIZE;
+                    var left = stack.readBigEndianInt(sp);
+                    stack.writeBigEndianInt(sp, switch (op) {
+                        case IADD -> left + right;
+                        case IAND -> left & right;
+                        case IOR -> left | right;
+                        default -> left - right;
+                    });
+                    index++;
+                }
+                case SWAP -> {
+                    var top = stack.readBigEndianInt(sp);
+                    stack.writeBigEndianInt(sp, stack.readBigEndianInt(sp - MemoryPointer.WORD_SIZE));
+                    stack.writeBigEndianInt(sp - MemoryPointer.WORD_SIZE, top);
+                    index++;
+                }
+                case POP -> {
+                    sp -= MemoryPointer.WORD_SIZE;
+                    index++;
+                }
+                case ILOAD -> {
+                    sp += MemoryPointer.WORD_SIZE;
+                    stack.writeBigEndianInt(sp, stack.readBigEndianInt(lv + operands[index]));
+                    index++;
+                }
+                case ISTORE -> {
+                    stack.writeBigEndianInt(lv + operands[index], stack.readBigEndianInt(sp));
+                    sp -= MemoryPointer.WORD_SIZE;
+                    index++;
+                }
+                case IINC -> {
+                    var address = lv + operands[index];
+                    stack.writeBigEndianInt(address, stack.readBigEndianInt(address) + increments[index]);
+                    index++;
+                }
+                case GOTO -> index = targets[index];
+                case IFEQ -> {
+                    var value = stack.readBigEndianInt(sp);
+                    sp -= MemoryPointer.WORD_SIZE;
+                    index = value == 0 ? targets[index] : index + 1;
+                }
+                case IFLT -> {
+                    var value = stack.readBigEndianInt(sp);
+                    sp -= MemoryPointer.WORD_SIZE;
+                    index = value < 0 ? targets[index] : index + 1;
+                }
+                case IF_ICMPEQ -> {
+                    var value1 = stack.readBigEndianInt(sp);
+                    var value2 = stack.readBigEndianInt(sp - MemoryPointer.WORD_SIZE);
+                    sp -= 2 * MemoryPointer.WORD_SIZE;
+                    index = value1 == value2 ? targets[index] : index + 1;
+                }
+                case NOP -> index++;
+                case EXIT -> {
+                    processor.stackPointer.setPointer(sp);
+                    processor.methodAreaPointer.setPointer(addresses[index]);
+                    return;
+                }
+            }
+        }
+    }
+
+    private int indexAt(int address) {
+        var offset = address - codeStart;
+        var index = offset < 0 || offset >= indexByOffset.length ? -1 : indexByOffset[offset];
+        if (index == -1) {
+            throw new IllegalStateException("Address " + address + " is not an instruction of " + name);
+        }
+
+        return index;
+    }
+
+    private enum Op {
+        PUSH,
+        DUP,
+        IADD,
+        IAND,
+        IOR,
+        ISUB,
+        SWAP,
+        POP,
+        ILOAD,
+        ISTORE,
+        IINC,
+        GOTO,
+        IFEQ,
+        IFLT,
+        IF_ICMPEQ,
+        NOP,
+        // Closed form of a whole loop
+        LOOP,
+        // Hand control back to the processor
+        EXIT
+    }
+}
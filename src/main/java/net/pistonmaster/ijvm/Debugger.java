@@ -0,0 +1,337 @@
+package net.pistonmaster.ijvm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Breakpoint and watchpoint debugger for a {@link Processor}.
+ * <p>
+ * Breakpoints and watchpoints patch a BREAKPOINT opcode over the first byte of the affected instructions,
+ * so instructions without a patch execute exactly as fast as without a debugger attached.
+ * The debugger patches a private copy of the method area, the program definition is never modified.
+ */
+public class Debugger implements TrapHandler {
+    private final Processor processor;
+    private final ProgramDefinition definition;
+    private final BytecodeDecoder decoder;
+    private final Map<Integer, Patch> patches = new HashMap<>();
+    private StopEvent stopEvent;
+    private boolean halted;
+
+    public Debugger(Processor processor, ProgramDefinition definition) {
+        this.processor = processor;
+        this.definition = definition;
+        this.decoder = new BytecodeDecoder(definition);
+
+        processor.methodArea.storage = processor.methodArea.copyStorage();
+        processor.trapHandler = this;
+    }
+
+    public void addBreakpoint(String method, int offset) {
+        patch(resolve(method, offset)).breakpoint = true;
+    }
+
+    public void removeBreakpoint(String method, int offset) {
+        var address = resolve(method, offset);
+        var patch = patches.get(address);
+        if (patch != null) {
+            patch.breakpoint = false;
+            unpatchIfUnused(address, patch);
+        }
+    }
+
+    /**
+     * Stops after every ISTORE or IINC in the method that changes the local variable.
+     *
+     * @param method        The method whose frames to watch.
+     * @param variableIndex The local variable number, 0 is OBJREF.
+     */
+    public void addWatchpoint(String method, int variableIndex) {
+        for (var instruction : variableWrites(method, variableIndex)) {
+            patch(instruction.address()).watchedVariables.add(variableIndex);
+        }
+    }
+
+    public void removeWatchpoint(String method, int variableIndex) {
+        for (var instruction : variableWrites(method, variableIndex)) {
+            var patch = patches.get(instruction.address());
+            if (patch != null) {
+                patch.watchedVariables.remove(Integer.valueOf(variableIndex));
+                unpatchIfUnused(instruction.address(), patch);
+            }
+        }
+    }
+
+    /**
+     * Runs until a breakpoint or watchpoint stops execution or the program halts.
+     */
+    public StopEvent resume() {
+        if (halted) {
+            return haltedEvent();
+        }
+
+        stopEvent = null;
+
+        // The instruction at the program counter may be the breakpoint we are stopped at
+        halted = executeInstruction();
+        if (stopEvent == null && !halted) {
+            processor.run();
+
+            // Without a stop event, run() only returns once the program halted
+            halted = stopEvent == null || halted;
+        }
+
+        return finish(StopReason.HALTED);
+    }
+
+    public StopEvent step() {
+        if (halted) {
+            return haltedEvent();
+        }
+
+        stopEvent = null;
+        halted = executeInstruction();
+        return finish(StopReason.STEP);
+    }
+
+    /**
+     * Steps over an INVOKEVIRTUAL by running until the call returns to this frame, or steps a single instruction.
+     */
+    public StopEvent stepOver() {
+        var address = processor.methodAreaPointer.currentPointer();
+        if (halted || originalInstruction(address) != Instruction.INVOKEVIRTUAL) {
+            return step();
+        }
+
+        // INVOKEVIRTUAL <dispatch-part-1> <dispatch-part-2>
+        return runUntil(address + 3, processor.localVariablePointer.currentPointer());
+    }
+
+    /**
+     * Runs until the current method returns through IRETURN.
+     */
+    public StopEvent stepOut() {
+        var localVariablePointer = processor.localVariablePointer.currentPointer();
+        if (halted || localVariablePointer == 0) {
+            // The initial method has no caller to return to
+            return resume();
+        }
+
+        var linkPointer = processor.stack.readBigEndianInt(localVariablePointer);
+        var returnAddress = processor.stack.readBigEndianInt(linkPointer);
+        var callerLocalVariablePointer = processor.stack.readBigEndianInt(linkPointer + MemoryPointer.WORD_SIZE);
+        return runUntil(returnAddress, callerLocalVariablePointer);
+    }
+
+    /**
+     * @param variableIndex The local variable number in the current frame, 0 is OBJREF.
+     */
+    public int readLocalVariable(int variableIndex) {
+        return processor.stack.readBigEndianInt(processor.localVariablePointer.currentPointer() + variableIndex * MemoryPointer.WORD_SIZE);
+    }
+
+    public String currentMethod() {
+        return decoder.methodAt(processor.methodAreaPointer.currentPointer());
+    }
+
+    public boolean isHalted() {
+        return halted;
+    }
+
+    /**
+     * Removes all patches and the trap handler from the processor.
+     */
+    public void detach() {
+        for (var patch : patches.entrySet()) {
+            processor.methodArea.storage[patch.getKey()] = patch.getValue().originalOpcode;
+        }
+
+        patches.clear();
+        processor.trapHandler = null;
+    }
+
+    @Override
+    public boolean onTrap(Processor trapped) {
+        var address = trapped.methodAreaPointer.currentPointer();
+        var patch = patches.get(address);
+        if (patch == null) {
+            throw new IllegalStateException("Hit a breakpoint the debugger did not set at " + address);
+        }
+
+        if (patch.breakpoint) {
+            stopEvent = event(StopReason.BREAKPOINT, address);
+            return true;
+        }
+
+        if (patch.stepTargetFrames.contains(trapped.localVariablePointer.currentPointer())) {
+            stopEvent = event(StopReason.STEP, address);
+            return true;
+        }
+
+        // Watchpoint or a step target reached by a different frame
+        halted = executeOriginal(address, patch);
+        return halted || stopEvent != null;
+    }
+
+    private StopEvent runUntil(int address, int localVariablePointer) {
+        var patch = patch(address);
+        patch.stepTargetFrames.add(localVariablePointer);
+        try {
+            return resume();
+        } finally {
+            patch.stepTargetFrames.remove(Integer.valueOf(localVariablePointer));
+            unpatchIfUnused(address, patch);
+        }
+    }
+
+    private boolean executeInstruction() {
+        var address = processor.methodAreaPointer.currentPointer();
+        var patch = patches.get(address);
+        if (patch == null) {
+            return processor.tick();
+        }
+
+        return executeOriginal(address, patch);
+    }
+
+    private boolean executeOriginal(int address, Patch patch) {
+        var frame = processor.localVariablePointer.currentPointer();
+        var oldValues = new int[patch.watchedVariables.size()];
+        for (int i = 0; i < oldValues.length; i++) {
+            oldValues[i] = readLocalVariable(patch.watchedVariables.get(i));
+        }
+
+        var storage = processor.methodArea.storage;
+        storage[address] = patch.originalOpcode;
+        boolean result;
+        try {
+            result = processor.tick();
+        } finally {
+            storage[address] = Instruction.BREAKPOINT.getOpcode();
+        }
+
+        for (int i = 0; i < oldValues.length; i++) {
+            var variable = patch.watchedVariables.get(i);
+            var newValue = processor.stack.readBigEndianInt(frame + variable * MemoryPointer.WORD_SIZE);
+            if (newValue != oldValues[i]) {
+                var next = processor.methodAreaPointer.currentPointer();
+                stopEvent = new StopEvent(StopReason.WATCHPOINT, next, decoder.methodAt(next),
+                        offsetInMethod(next), variable, oldValues[i], newValue);
+                break;
+            }
+        }
+
+        return result;
+    }
+
+    private StopEvent finish(StopReason reason) {
+        if (stopEvent != null) {
+            return stopEvent;
+        }
+
+        return halted ? haltedEvent() : event(reason, processor.methodAreaPointer.currentPointer());
+    }
+
+    private StopEvent haltedEvent() {
+        return new StopEvent(StopReason.HALTED, -1, null, -1, -1, 0, 0);
+    }
+
+    private StopEvent event(StopReason reason, int address) {
+        return new StopEvent(reason, address, decoder.methodAt(address), offsetInMethod(address), -1, 0, 0);
+    }
+
+    private int offsetInMethod(int address) {
+        var method = decoder.methodAt(address);
+        return method == null ? -1 : address - definition.methods().get(method) - 4;
+    }
+
+    private Instruction originalInstruction(int address) {
+        var patch = patches.get(address);
+        var opcode = patch == null ? processor.methodArea.readByte(address) : patch.originalOpcode;
+        return Instruction.fromOpcode(opcode);
+    }
+
+    private int resolve(String method, int offset) {
+        var methodAddress = requireMethod(method);
+        var address = methodAddress + 4 + offset;
+        for (var instruction : decoder.decodeMethod(methodAddress)) {
+            if (instruction.address() == address) {
+                return address;
+            }
+        }
+
+        throw new IllegalArgumentException("Offset " + offset + " is not the start of an instruction in " + method);
+    }
+
+    private List<BytecodeDecoder.DecodedInstruction> variableWrites(String method, int variableIndex) {
+        List<BytecodeDecoder.DecodedInstruction> writes = new ArrayList<>();
+        for (var instruction : decoder.decodeMethod(requireMethod(method))) {
+            var writesVariable = instruction.instruction() == Instruction.ISTORE || instruction.instruction() == Instruction.IINC;
+            if (writesVariable && instruction.operand() == variableIndex) {
+                writes.add(instruction);
+            }
+        }
+
+        return writes;
+    }
+
+    private int requireMethod(String method) {
+        var methodAddress = definition.methods().get(method);
+        if (methodAddress == null) {
+            throw new IllegalArgumentException("Method not found: " + method);
+        }
+
+        return methodAddress;
+    }
+
+    private Patch patch(int address) {
+        return patches.computeIfAbsent(address, key -> {
+            var storage = processor.methodArea.storage;
+            var patch = new Patch(storage[key]);
+            storage[key] = Instruction.BREAKPOINT.getOpcode();
+            return patch;
+        });
+    }
+
+    private void unpatchIfUnused(int address, Patch patch) {
+        if (!patch.breakpoint && patch.watchedVariables.isEmpty() && patch.stepTargetFrames.isEmpty()) {
+            processor.methodArea.storage[address] = patch.originalOpcode;
+            patches.remove(address);
+        }
+    }
+
+    public enum StopReason {
+        BREAKPOINT,
+        STEP,
+        WATCHPOINT,
+        HALTED
+    }
+
+    /**
+     * Why and where execution stopped.
+     *
+     * @param reason        Why execution stopped.
+     * @param address       The method area address of the next instruction to execute, -1 once halted.
+     * @param method        The method containing the address.
+     * @param offset        The offset of the address behind the method header.
+     * @param variableIndex The changed local variable for watchpoints, -1 otherwise.
+     * @param oldValue      The value before the watched write.
+     * @param newValue      The value after the watched write.
+     */
+    public record StopEvent(StopReason reason, int address, String method, int offset,
+                            int variableIndex, int oldValue, int newValue) {
+    }
+
+    private static final class Patch {
+        private final byte originalOpcode;
+        private final List<Integer> watchedVariables = new ArrayList<>();
+        private final List<Integer> stepTargetFrames = new ArrayList<>();
+        private boolean breakpoint;
+
+        private Patch(byte originalOpcode) {
+            this.originalOpcode = originalOpcode;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package net.pistonmaster.ijvm;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs a program while moving hot methods to faster execution tiers.
+ * <p>
+ * Methods start in the interpreter, which counts invocations and taken backward branches. When a method passes
+ * either threshold it is compiled to a {@link CompiledMethod} on the compiler executor, a background thread by
+ * default, and the executing thread keeps interpreting until the compiled form is published. Running frames
+ * switch over at their next instruction, because both tiers share the frame layout.
+ * <p>
+ * Counters persist across {@link #run(String)} calls. Runs must not overlap, statistics may be read from any thread.
+ */
+public class ExecutionManager implements AutoCloseable {
+    public static final int DEFAULT_INVOCATION_THRESHOLD = 1000;
+    public static final int DEFAULT_BACKEDGE_THRESHOLD = 10_000;
+    private final ProgramDefinition definition;
+    private final Map<String, MethodState> methods = new LinkedHashMap<>();
+    private final Map<Integer, MethodState> methodsByAddress = new HashMap<>();
+    private Map<String, MethodAnalysis> analyses = Map.of();
+    private int invocationThreshold = DEFAULT_INVOCATION_THRESHOLD;
+    private int backedgeThreshold = DEFAULT_BACKEDGE_THRESHOLD;
+    private Executor compilerExecutor;
+    private ExecutorService ownedExecutor;
+
+    public ExecutionManager(ProgramDefinition definition) {
+        this.definition = definition;
+        for (var method : definition.methods().entrySet()) {
+            var state = new MethodState(method.getKey());
+            methods.put(method.getKey(), state);
+            methodsByAddress.put(method.getValue(), state);
+        }
+    }
+
+    /**
+     * Compiles from the analysis stored in the image instead of analyzing methods again.
+     */
+    public ExecutionManager(ProgramImage image) {
+        this(image.definition());
+        this.analyses = image.analyses();
+    }
+
+    public ExecutionManager invocationThreshold(int invocationThreshold) {
+        this.invocationThreshold = invocationThreshold;
+        return this;
+    }
+
+    public ExecutionManager backedgeThreshold(int backedgeThreshold) {
+        this.backedgeThreshold = backedgeThreshold;
+        return this;
+    }
+
+    /**
+     * @param compilerExecutor Runs compilation tasks. The default is a single daemon thread.
+     */
+    public ExecutionManager compilerExecutor(Executor compilerExecutor) {
+        this.compilerExecutor = compilerExecutor;
+        return this;
+    }
+
+    public int run(String method) {
+        return run(new Processor(definition, method));
+    }
+
+    /**
+     * Runs the processor to completion.
+     *
+     * @param processor A processor created from the managed program that has not run yet.
+     * @return The return value of the initial method.
+     */
+    public int run(Processor processor) {
+        Deque<MethodState> callers = new ArrayDeque<>();
+        var current = methodAt(processor.methodAreaPointer.currentPointer() - 4);
+        countInvocation(current);
+
+        while (true) {
+            var compiled = current.compiled;
+            if (compiled != null) {
+                compiled.execute(processor);
+            }
+
+            var pc = processor.methodAreaPointer.currentPointer();
+            var instruction = Instruction.fromOpcode(processor.methodArea.readByte(pc));
+            switch (instruction) {
+                case INVOKEVIRTUAL -> {
+                    var dispatch = processor.methodArea.readDisp(pc + 1);
+                    var callee = methodAt(processor.constantPool.readBigEndianInt(
+                            processor.constantPoolPointer.currentPointer() + dispatch * MemoryPointer.WORD_SIZE));
+                    processor.tick();
+
+                    callers.push(current);
+                    current = callee;
+                    countInvocation(current);
+                }
+                case IRETURN -> {
+                    if (processor.tick()) {
+                        return processor.stack.readBigEndianInt(0x00000000);
+                    }
+
+                    current = callers.pop();
+                }
+                case GOTO, IFEQ, IFLT, IF_ICMPEQ -> {
+                    processor.tick();
+                    if (processor.methodAreaPointer.currentPointer() < pc && ++current.backedges >= backedgeThreshold) {
+                        promote(current);
+                    }
+                }
+                default -> {
+                    if (processor.tick()) {
+                        return processor.stack.readBigEndianInt(0x00000000);
+                    }
+                }
+            }
+        }
+    }
+
+    public Tier tier(String method) {
+        return state(method).tier;
+    }
+
+    public MethodStatistics statistics(String method) {
+        return state(method).statistics();
+    }
+
+    /**
+     * @return Statistics of every method in link order.
+     */
+    public Map<String, MethodStatistics> statistics() {
+        Map<String, MethodStatistics> statistics = new LinkedHashMap<>();
+        for (var state : methods.values()) {
+            statistics.put(state.name, state.statistics());
+        }
+
+        return statistics;
+    }
+
+    @Override
+    public void close() {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdownNow();
+        }
+    }
+
+    private MethodState state(String method) {
+        var state = methods.get(method);
+        if (state == null) {
+            throw new IllegalArgumentException("Method not found: " + method);
+        }
+
+        return state;
+    }
+
+    private MethodState methodAt(int methodAddress) {
+        var state = methodsByAddress.get(methodAddress);
+        if (state == null) {
+            throw new IllegalStateException("No method at address " + methodAddress);
+        }
+
+        return state;
+    }
+
+    private void countInvocation(MethodState state) {
+        if (++state.invocations >= invocationThreshold) {
+            promote(state);
+        }
+    }
+
+    private void promote(MethodState state) {
+        if (state.tier != Tier.INTERPRETED) {
+            return;
+        }
+
+        state.tier = Tier.COMPILING;
+        try {
+            compilerExecutor().execute(() -> compile(state));
+        } catch (RejectedExecutionException e) {
+            // Compiler is shut down, stay in the interpreter
+            state.tier = Tier.INTERPRETED;
+        }
+    }
+
+    private void compile(MethodState state) {
+        var start = System.nanoTime();
+        try {
+            var analysis = analyses.get(state.name);
+            var compiled = analysis == null
+                    ? CompiledMethod.compile(definition, state.name)
+                    : CompiledMethod.compile(definition, state.name, analysis);
+            state.compileNanos = System.nanoTime() - start;
+            state.compiled = compiled;
+            state.tier = Tier.COMPILED;
+        } catch (RuntimeException e) {
+            state.compileNanos = System.nanoTime() - start;
+            state.tier = Tier.FAILED;
+        }
+    }
+
+    private Executor compilerExecutor() {
+        if (compilerExecutor == null) {
+            ownedExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                var thread = new Thread(runnable, "ijvm-compiler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            compilerExecutor = ownedExecutor;
+        }
+
+        return compilerExecutor;
+    }
+
+    public enum Tier {
+        INTERPRETED,
+        // Queued or running on the compiler executor
+        COMPILING,
+        COMPILED,
+        // Compilation threw, the method stays interpreted
+        FAILED
+    }
+
+    /**
+     * @param compileNanos Time spent compiling the method, zero until it was compiled.
+     */
+    public record MethodStatistics(Tier tier, long invocations, long backedges, long compileNanos) {
+    }
+
+    private static final class MethodState {
+        private final String name;
+        // Only written by the executing thread, so the increments need no atomics. Volatile so the compiler
+        // thread and statistics() never see torn or stale counts
+        private volatile long invocations;
+        private volatile long backedges;
+        private volatile Tier tier = Tier.INTERPRETED;
+        private volatile CompiledMethod compiled;
+        private volatile long compileNanos;
+
+        private MethodState(String name) {
+            this.name = name;
+        }
+
+        private MethodStatistics statistics() {
+            return new MethodStatistics(tier, invocations, backedges, compileNanos);
+        }
+    }
+}
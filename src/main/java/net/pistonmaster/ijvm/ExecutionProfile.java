@@ -0,0 +1,100 @@
+package net.pistonmaster.ijvm;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Instruction, branch and call counts of one or more runs of a program.
+ * <p>
+ * Profiling drives the processor one tick at a time and inspects every instruction,
+ * so it is meant for training runs and not for production execution.
+ */
+public class ExecutionProfile {
+    private final ProgramDefinition definition;
+    private final BytecodeDecoder decoder;
+    private final long[] executionCounts;
+    private final long[] takenCounts;
+    private final Map<String, Long> invocationCounts = new LinkedHashMap<>();
+    private final Map<String, Map<String, Long>> callCounts = new LinkedHashMap<>();
+
+    public ExecutionProfile(ProgramDefinition definition) {
+        this.definition = definition;
+        this.decoder = new BytecodeDecoder(definition);
+        this.executionCounts = new long[definition.methodArea().length];
+        this.takenCounts = new long[definition.methodArea().length];
+    }
+
+    /**
+     * Runs the processor to completion and adds its execution to the profile.
+     *
+     * @param processor A processor created from the profiled program that has not run yet.
+     */
+    public void record(Processor processor) {
+        var pc = processor.methodAreaPointer.currentPointer();
+        invocationCounts.merge(decoder.methodAt(pc), 1L, Long::sum);
+
+        boolean halted;
+        do {
+            pc = processor.methodAreaPointer.currentPointer();
+            executionCounts[pc]++;
+
+            var instruction = Instruction.fromOpcode(processor.methodArea.readByte(pc));
+            if (instruction == Instruction.INVOKEVIRTUAL) {
+                var dispatch = processor.methodArea.readDisp(pc + 1);
+                var callee = decoder.methodAt(processor.constantPool.readBigEndianInt(dispatch * MemoryPointer.WORD_SIZE));
+                invocationCounts.merge(callee, 1L, Long::sum);
+                callCounts.computeIfAbsent(decoder.methodAt(pc), key -> new HashMap<>()).merge(callee, 1L, Long::sum);
+            }
+
+            halted = processor.tick();
+
+            var conditional = instruction == Instruction.IFEQ || instruction == Instruction.IFLT || instruction == Instruction.IF_ICMPEQ;
+            if (conditional && processor.methodAreaPointer.currentPointer() == pc + processor.methodArea.readOffset(pc + 1)) {
+                takenCounts[pc]++;
+            }
+        } while (!halted);
+    }
+
+    public ProgramDefinition definition() {
+        return definition;
+    }
+
+    /**
+     * @param address The address of the first byte of an instruction, the WIDE prefix for widened instructions.
+     */
+    public long executionCount(int address) {
+        return executionCounts[address];
+    }
+
+    /**
+     * @param address The address of a conditional branch.
+     */
+    public long takenCount(int address) {
+        return takenCounts[address];
+    }
+
+    public long invocationCount(String method) {
+        return invocationCounts.getOrDefault(method, 0L);
+    }
+
+    public long callCount(String caller, String callee) {
+        return callCounts.getOrDefault(caller, Map.of()).getOrDefault(callee, 0L);
+    }
+
+    /**
+     * @return Call counts by caller and callee.
+     */
+    public Map<String, Map<String, Long>> callCounts() {
+        return callCounts;
+    }
+
+    public long totalInstructions() {
+        var total = 0L;
+        for (var count : executionCounts) {
+            total += count;
+        }
+
+        return total;
+    }
+}
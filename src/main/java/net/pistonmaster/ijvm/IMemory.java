@@ -131,7 +131,7 @@ public interface IMemory {
     }
 
     enum ParameterType {
-        VAR_NUM {
+        VAR_NUM(1) {
             @Override
             void validate(int value) {
                 if (value < 0 || value > Byte.MAX_VALUE) {
@@ -139,7 +139,7 @@ public interface IMemory {
                 }
             }
         },
-        VAR_NUM_WIDE {
+        VAR_NUM_WIDE(2) {
             @Override
             void validate(int value) {
                 if (value < 0 || value > Short.MAX_VALUE) {
@@ -147,7 +147,7 @@ public interface IMemory {
                 }
             }
         },
-        INDEX {
+        INDEX(2) {
             @Override
             void validate(int value) {
                 if (value < 0 || value > Short.MAX_VALUE) {
@@ -155,7 +155,7 @@ public interface IMemory {
                 }
             }
         },
-        DISP {
+        DISP(2) {
             @Override
             void validate(int value) {
                 if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
@@ -163,7 +163,7 @@ public interface IMemory {
                 }
             }
         },
-        CONST {
+        CONST(1) {
             @Override
             void validate(int value) {
                 if (value < Byte.MIN_VALUE || value > Byte.MAX_VALUE) {
@@ -171,7 +171,7 @@ public interface IMemory {
                 }
             }
         },
-        BYTE {
+        BYTE(1) {
             @Override
             void validate(int value) {
                 if (value < Byte.MIN_VALUE || value > Byte.MAX_VALUE) {
@@ -179,7 +179,7 @@ public interface IMemory {
                 }
             }
         },
-        OFFSET {
+        OFFSET(2) {
             @Override
             void validate(int value) {
                 if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
@@ -188,6 +188,19 @@ public interface IMemory {
             }
         };
 
+        private final int size;
+
+        ParameterType(int size) {
+            this.size = size;
+        }
+
+        /**
+         * @return The number of bytes the parameter occupies in the method area.
+         */
+        public int size() {
+            return size;
+        }
+
         abstract void validate(int value);
     }
 }
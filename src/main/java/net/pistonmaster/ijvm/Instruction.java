@@ -1,45 +1,72 @@
 package net.pistonmaster.ijvm;
 
 public enum Instruction {
-    BIPUSH((byte) 0x10),
-    DUP((byte) 0x59),
-    GOTO((byte) 0xA7),
-    IADD((byte) 0x60),
-    IAND((byte) 0x7E),
-    IFEQ((byte) 0x99),
-    IFLT((byte) 0x9B),
-    IF_ICMPEQ((byte) 0x9F),
-    IINC((byte) 0x84),
-    ILOAD((byte) 0x15),
-    INVOKEVIRTUAL((byte) 0xB6),
-    IOR((byte) 0x80),
-    IRETURN((byte) 0xAC),
-    ISTORE((byte) 0x36),
-    ISUB((byte) 0x64),
-    LDC_W((byte) 0x13),
-    NOP((byte) 0x00),
-    POP((byte) 0x57),
-    SWAP((byte) 0x5F),
-    WIDE((byte) 0xC4);
-
-    private static final Instruction[] VALUES = values();
+    BIPUSH((byte) 0x10, 1),
+    DUP((byte) 0x59, 0),
+    GOTO((byte) 0xA7, 2),
+    IADD((byte) 0x60, 0),
+    IAND((byte) 0x7E, 0),
+    IFEQ((byte) 0x99, 2),
+    IFLT((byte) 0x9B, 2),
+    IF_ICMPEQ((byte) 0x9F, 2),
+    IINC((byte) 0x84, 2, true),
+    ILOAD((byte) 0x15, 1, true),
+    INVOKEVIRTUAL((byte) 0xB6, 2),
+    IOR((byte) 0x80, 0),
+    IRETURN((byte) 0xAC, 0),
+    ISTORE((byte) 0x36, 1, true),
+    ISUB((byte) 0x64, 0),
+    LDC_W((byte) 0x13, 2),
+    NOP((byte) 0x00, 0),
+    POP((byte) 0x57, 0),
+    SWAP((byte) 0x5F, 0),
+    WIDE((byte) 0xC4, 0),
+    // Debugger trap, patched over the first byte of an instruction
+    BREAKPOINT((byte) 0xCA, 0),
+    // Extension: run a method on a child processor and push a handle to it
+    SPAWN((byte) 0xD0, 2),
+    // Extension: pop a child handle and push the return value of the child
+    JOIN((byte) 0xD1, 0);
+
+    private static final Instruction[] BY_OPCODE = new Instruction[256];
     private final byte opcode;
+    private final int operandSize;
+    private final boolean widenable;
+
+    static {
+        for (Instruction instruction : values()) {
+            BY_OPCODE[instruction.opcode & 0xFF] = instruction;
+        }
+    }
 
-    Instruction(byte opcode) {
+    Instruction(byte opcode, int operandSize) {
+        this(opcode, operandSize, false);
+    }
+
+    Instruction(byte opcode, int operandSize, boolean widenable) {
         this.opcode = opcode;
+        this.operandSize = operandSize;
+        this.widenable = widenable;
     }
 
     public byte getOpcode() {
         return opcode;
     }
 
+    /**
+     * @param wide Whether the instruction is prefixed by WIDE.
+     * @return The length of the instruction including its opcode, excluding a WIDE prefix.
+     */
+    public int getLength(boolean wide) {
+        return 1 + operandSize + (wide && widenable ? 1 : 0);
+    }
+
     public static Instruction fromOpcode(byte opcode) {
-        for (Instruction instruction : VALUES) {
-            if (instruction.getOpcode() == opcode) {
-                return instruction;
-            }
+        var instruction = BY_OPCODE[opcode & 0xFF];
+        if (instruction == null) {
+            throw new IllegalArgumentException("Unknown opcode: " + opcode);
         }
 
-        throw new IllegalArgumentException("Unknown opcode: " + opcode);
+        return instruction;
     }
 }
@@ -0,0 +1,583 @@
+package net.pistonmaster.ijvm;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single-pass assembler for textual IJVM sources in the {@code .jas} format.
+ * <p>
+ * Supported are {@code .constant}, {@code .main}, {@code .method name(params)} and {@code .var} blocks,
+ * {@code label:} definitions, {@code //} comments and every opcode of {@link Instruction} except the internal
+ * BREAKPOINT trap of the {@link Debugger}, which is reported as an unknown instruction. Numbers may be decimal,
+ * hexadecimal ({@code 0x}) or character literals. WIDE is added automatically for variable indices above 127.
+ * <p>
+ * Code is written straight into the method area buffer while the source is read. Label offsets and constant pool
+ * indices are backpatched once the method or the whole source is complete, so the result is identical to linking
+ * the same program with {@link ProgramDefinition.ProgramDefinitionBuilder}.
+ */
+public class JasAssembler {
+    private static final Map<String, Instruction> INSTRUCTIONS = new HashMap<>();
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    static {
+        for (var instruction : Instruction.values()) {
+            // Only the debugger patches in traps, a program containing one would fail without a debugger attached
+            if (instruction == Instruction.BREAKPOINT) {
+                continue;
+            }
+
+            INSTRUCTIONS.put(instruction.name(), instruction);
+            INSTRUCTIONS.put(instruction.name().toLowerCase(), instruction);
+        }
+    }
+
+    private final Source source;
+    private final char[] buffer = new char[8192];
+    private int bufferPosition;
+    private int bufferLimit;
+    private boolean endOfSource;
+    private char[] line = new char[256];
+    private int lineLength;
+    private int lineNumber;
+    private int[] tokenStarts = new int[8];
+    private int[] tokenEnds = new int[8];
+    private int tokenCount;
+
+    private final Map<String, Integer> constantValues = new LinkedHashMap<>();
+    private final Map<String, Integer> methodAddresses = new LinkedHashMap<>();
+    private final List<Reference> poolReferences = new ArrayList<>();
+    private byte[] code;
+    private int codeSize;
+
+    private Section section = Section.NONE;
+    private Section methodSection;
+    private int methodAddress;
+    private int parameterCount;
+    private final Map<String, Integer> variables = new HashMap<>();
+    private final Map<String, Integer> labels = new HashMap<>();
+    private final List<Reference> labelReferences = new ArrayList<>();
+    private boolean forceWide;
+
+    private JasAssembler(Source source, int capacityHint) {
+        this.source = source;
+        this.code = new byte[Math.max(capacityHint, 64)];
+    }
+
+    public static ProgramDefinition assemble(String source) {
+        return assemble(new StringReader(source));
+    }
+
+    public static ProgramDefinition assemble(Reader reader) {
+        return new JasAssembler(reader::read, DEFAULT_CAPACITY).assemble();
+    }
+
+    /**
+     * Assembles a UTF-8 source file. The file is memory-mapped and decoded chunk by chunk.
+     */
+    public static ProgramDefinition assemble(Path path) {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            // Source text is a few times larger than the code it assembles to
+            var capacityHint = (int) Math.min(channel.size() / 3, Integer.MAX_VALUE - 8);
+            return new JasAssembler(new MappedSource(mapped), capacityHint).assemble();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ProgramDefinition assemble() {
+        try {
+            while (nextLine()) {
+                tokenize();
+                if (tokenCount > 0) {
+                    assembleLine();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        if (section != Section.NONE) {
+            throw new IllegalArgumentException("Unexpected end of source, " + section.end + " is missing");
+        }
+
+        return finish();
+    }
+
+    private void assembleLine() {
+        var first = token(0);
+        switch (section) {
+            case NONE -> {
+                switch (first) {
+                    case ".constant" -> section = Section.CONSTANTS;
+                    case ".main" -> startMethod("main", 1, Section.MAIN);
+                    case ".method" -> {
+                        if (tokenCount < 2) {
+                            throw error(".method needs a name");
+                        }
+
+                        startMethod(token(1), 2, Section.METHOD);
+                    }
+                    default -> throw error("Unexpected " + first + " outside of a block");
+                }
+            }
+            case CONSTANTS -> {
+                if (first.equals(".end-constant")) {
+                    section = Section.NONE;
+                    return;
+                }
+
+                expectTokens(2);
+                var value = parseNumber(1);
+                if (value < Integer.MIN_VALUE || value > 0xFFFFFFFFL) {
+                    throw error("Constant " + first + " does not fit into 32 bits");
+                }
+
+                if (constantValues.containsKey(first) || methodAddresses.containsKey(first)) {
+                    throw error("Duplicate constant: " + first);
+                }
+
+                constantValues.put(first, (int) value);
+            }
+            case VARS -> {
+                if (first.equals(".end-var")) {
+                    section = methodSection;
+                    return;
+                }
+
+                for (int i = 0; i < tokenCount; i++) {
+                    declareVariable(token(i));
+                }
+            }
+            case MAIN, METHOD -> {
+                if (first.equals(section.end)) {
+                    endMethod();
+                    return;
+                }
+
+                if (first.equals(".var")) {
+                    section = Section.VARS;
+                    return;
+                }
+
+                assembleInstruction();
+            }
+        }
+    }
+
+    private void startMethod(String name, int firstParameter, Section methodSection) {
+        if (methodAddresses.containsKey(name) || constantValues.containsKey(name)) {
+            throw error("Duplicate method: " + name);
+        }
+
+        methodAddress = codeSize;
+        this.methodSection = methodSection;
+        section = methodSection;
+        variables.clear();
+        labels.clear();
+        labelReferences.clear();
+        methodAddresses.put(name, methodAddress);
+
+        // Index 0 is OBJREF
+        parameterCount = 1;
+        for (int i = firstParameter; i < tokenCount; i++) {
+            declareVariable(token(i));
+            parameterCount++;
+        }
+
+        // Header, the local variable count is filled in at the end of the method
+        ensureCode(4);
+        writeShort(codeSize, parameterCount);
+        codeSize += 4;
+    }
+
+    private void declareVariable(String name) {
+        if (variables.putIfAbsent(name, variables.size() + 1) != null) {
+            throw error("Duplicate variable: " + name);
+        }
+    }
+
+    private void endMethod() {
+        for (var reference : labelReferences) {
+            var target = labels.get(reference.name);
+            if (target == null) {
+                throw new IllegalArgumentException("Line " + reference.line + ": Label not found: " + reference.name);
+            }
+
+            var offset = target - reference.address;
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                throw new IllegalArgumentException("Line " + reference.line + ": Branch to " + reference.name + " does not fit into 16 bits");
+            }
+
+            writeShort(reference.address + 1, offset);
+        }
+
+        writeShort(methodAddress + 2, variables.size() + 1 - parameterCount);
+        section = Section.NONE;
+    }
+
+    private void assembleInstruction() {
+        var tokenIndex = 0;
+        var first = token(0);
+        if (first.endsWith(":")) {
+            var label = first.substring(0, first.length() - 1);
+            if (labels.putIfAbsent(label, codeSize) != null) {
+                throw error("Duplicate label: " + label);
+            }
+
+            if (tokenCount == 1) {
+                return;
+            }
+
+            tokenIndex = 1;
+        }
+
+        var name = token(tokenIndex);
+        var instruction = INSTRUCTIONS.get(name);
+        if (instruction == null) {
+            throw error("Unknown instruction: " + name);
+        }
+
+        var operandCount = switch (instruction) {
+            case BIPUSH, GOTO, IFEQ, IFLT, IF_ICMPEQ, ILOAD, INVOKEVIRTUAL, ISTORE, LDC_W, SPAWN -> 1;
+            case IINC -> 2;
+            default -> 0;
+        };
+        if (tokenCount - tokenIndex - 1 != operandCount) {
+            throw error(instruction + " takes " + operandCount + " operand(s)");
+        }
+
+        if (forceWide && instruction != Instruction.ILOAD && instruction != Instruction.ISTORE && instruction != Instruction.IINC) {
+            throw error("WIDE can not be applied to " + instruction);
+        }
+
+        var operand = tokenIndex + 1;
+        ensureCode(5);
+        switch (instruction) {
+            case BIPUSH -> {
+                emit(instruction);
+                code[codeSize++] = (byte) checkedNumber(operand, IMemory.ParameterType.BYTE);
+            }
+            case GOTO, IFEQ, IFLT, IF_ICMPEQ -> {
+                labelReferences.add(new Reference(codeSize, token(operand), lineNumber));
+                emit(instruction);
+                codeSize += 2;
+            }
+            case ILOAD, ISTORE -> emitVariable(instruction, operand);
+            case IINC -> {
+                emitVariable(instruction, operand);
+                code[codeSize++] = (byte) checkedNumber(operand + 1, IMemory.ParameterType.CONST);
+            }
+            case INVOKEVIRTUAL, LDC_W, SPAWN -> {
+                emit(instruction);
+                if (instruction == Instruction.LDC_W && isNumber(operand)) {
+                    writeShort(codeSize, checkedNumber(operand, IMemory.ParameterType.INDEX));
+                } else {
+                    poolReferences.add(new Reference(codeSize - 1, token(operand), lineNumber, instruction != Instruction.LDC_W));
+                }
+
+                codeSize += 2;
+            }
+            case WIDE -> {
+                forceWide = true;
+                return;
+            }
+            default -> emit(instruction);
+        }
+
+        forceWide = false;
+    }
+
+    private void emit(Instruction instruction) {
+        code[codeSize++] = instruction.getOpcode();
+    }
+
+    private void emitVariable(Instruction instruction, int operand) {
+        var name = token(operand);
+        var index = variables.get(name);
+        if (index == null) {
+            throw error("Variable not found: " + name);
+        }
+
+        if (forceWide || index > Byte.MAX_VALUE) {
+            checkRange(IMemory.ParameterType.VAR_NUM_WIDE, index);
+            emit(Instruction.WIDE);
+            emit(instruction);
+            writeShort(codeSize, index);
+            codeSize += 2;
+        } else {
+            emit(instruction);
+            code[codeSize++] = (byte) index.intValue();
+        }
+    }
+
+    private ProgramDefinition finish() {
+        Map<String, Integer> constantAddresses = new LinkedHashMap<>();
+        var constantPool = new ProgramMemory((constantValues.size() + methodAddresses.size()) * MemoryPointer.WORD_SIZE);
+        for (var constant : constantValues.entrySet()) {
+            var address = constantAddresses.size() * MemoryPointer.WORD_SIZE;
+            constantAddresses.put(constant.getKey(), address);
+            constantPool.writeBigEndianInt(address, constant.getValue());
+        }
+
+        // Method slots hold the method address
+        for (var method : methodAddresses.entrySet()) {
+            var address = constantAddresses.size() * MemoryPointer.WORD_SIZE;
+            constantAddresses.put(method.getKey(), address);
+            constantPool.writeBigEndianInt(address, method.getValue());
+        }
+
+        for (var reference : poolReferences) {
+            var address = constantAddresses.get(reference.name);
+            if (address == null || (reference.method && !methodAddresses.containsKey(reference.name))) {
+                throw new IllegalArgumentException("Line " + reference.line + ": " + (reference.method ? "Method" : "Constant or method") + " not found: " + reference.name);
+            }
+
+            writeShort(reference.address + 1, address / MemoryPointer.WORD_SIZE);
+        }
+
+        return new ProgramDefinition(
+                constantPool.storage,
+                Arrays.copyOf(code, codeSize),
+                constantAddresses,
+                new LinkedHashMap<>(methodAddresses)
+        );
+    }
+
+    private void ensureCode(int bytes) {
+        if (codeSize + bytes > code.length) {
+            code = Arrays.copyOf(code, Math.max(codeSize + bytes, code.length * 2));
+        }
+    }
+
+    private void writeShort(int address, int value) {
+        code[address] = (byte) (value >> 8);
+        code[address + 1] = (byte) value;
+    }
+
+    /**
+     * Reads the next line into the line buffer without the line terminator.
+     *
+     * @return false at the end of the source.
+     */
+    private boolean nextLine() throws IOException {
+        lineLength = 0;
+        while (true) {
+            if (bufferPosition == bufferLimit) {
+                var read = endOfSource ? -1 : source.read(buffer, 0, buffer.length);
+                if (read < 0) {
+                    endOfSource = true;
+                    if (lineLength == 0) {
+                        return false;
+                    }
+
+                    lineNumber++;
+                    return true;
+                }
+
+                bufferPosition = 0;
+                bufferLimit = read;
+                continue;
+            }
+
+            var c = buffer[bufferPosition++];
+            if (c == '\n') {
+                lineNumber++;
+                return true;
+            }
+
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+
+            line[lineLength++] = c;
+        }
+    }
+
+    /**
+     * Splits the current line at whitespace, commas and parentheses and drops comments.
+     */
+    private void tokenize() {
+        tokenCount = 0;
+        var i = 0;
+        while (i < lineLength) {
+            var c = line[i];
+            if (c == '/' && i + 1 < lineLength && line[i + 1] == '/') {
+                return;
+            }
+
+            if (isSeparator(c)) {
+                i++;
+                continue;
+            }
+
+            var start = i;
+            while (i < lineLength && !isSeparator(line[i]) && !(line[i] == '/' && i + 1 < lineLength && line[i + 1] == '/')) {
+                i++;
+            }
+
+            if (tokenCount == tokenStarts.length) {
+                tokenStarts = Arrays.copyOf(tokenStarts, tokenCount * 2);
+                tokenEnds = Arrays.copyOf(tokenEnds, tokenCount * 2);
+            }
+
+            tokenStarts[tokenCount] = start;
+            tokenEnds[tokenCount] = i;
+            tokenCount++;
+        }
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == ',' || c == '(' || c == ')';
+    }
+
+    private String token(int index) {
+        return new String(line, tokenStarts[index], tokenEnds[index] - tokenStarts[index]);
+    }
+
+    private void expectTokens(int count) {
+        if (tokenCount != count) {
+            throw error("Expected " + count + " tokens but got " + tokenCount);
+        }
+    }
+
+    private boolean isNumber(int index) {
+        var c = line[tokenStarts[index]];
+        return c == '-' || c == '\'' || Character.isDigit(c);
+    }
+
+    /**
+     * Parses a decimal, hexadecimal or character literal token without allocating.
+     */
+    private long parseNumber(int index) {
+        var start = tokenStarts[index];
+        var end = tokenEnds[index];
+        if (end - start == 3 && line[start] == '\'' && line[end - 1] == '\'') {
+            return line[start + 1];
+        }
+
+        var negative = line[start] == '-';
+        var i = negative ? start + 1 : start;
+        var radix = 10;
+        if (end - i > 2 && line[i] == '0' && (line[i + 1] == 'x' || line[i + 1] == 'X')) {
+            radix = 16;
+            i += 2;
+        }
+
+        if (i == end) {
+            throw error("Invalid number: " + token(index));
+        }
+
+        long value = 0;
+        for (; i < end; i++) {
+            var digit = Character.digit(line[i], radix);
+            if (digit < 0) {
+                throw error("Invalid number: " + token(index));
+            }
+
+            value = value * radix + digit;
+            if (value > 0xFFFFFFFFL) {
+                throw error("Number out of range: " + token(index));
+            }
+        }
+
+        return negative ? -value : value;
+    }
+
+    private int checkedNumber(int index, IMemory.ParameterType type) {
+        var value = parseNumber(index);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw error("Number out of range: " + token(index));
+        }
+
+        checkRange(type, (int) value);
+        return (int) value;
+    }
+
+    private void checkRange(IMemory.ParameterType type, int value) {
+        try {
+            type.validate(value);
+        } catch (IllegalArgumentException e) {
+            throw error(e.getMessage());
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Line " + lineNumber + ": " + message);
+    }
+
+    private enum Section {
+        NONE(null),
+        CONSTANTS(".end-constant"),
+        MAIN(".end-main"),
+        METHOD(".end-method"),
+        VARS(".end-var");
+
+        private final String end;
+
+        Section(String end) {
+            this.end = end;
+        }
+    }
+
+    /**
+     * A label or constant pool reference, {@code address} is the opcode of the referencing instruction.
+     */
+    private record Reference(int address, String name, int line, boolean method) {
+        private Reference(int address, String name, int line) {
+            this(address, name, line, false);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Source {
+        int read(char[] buffer, int offset, int length) throws IOException;
+    }
+
+    private static final class MappedSource implements Source {
+        private final MappedByteBuffer mapped;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+        private boolean flushed;
+
+        private MappedSource(MappedByteBuffer mapped) {
+            this.mapped = mapped;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            if (flushed) {
+                return -1;
+            }
+
+            var chars = CharBuffer.wrap(buffer, offset, length);
+            var result = decoder.decode(mapped, chars, true);
+            if (result.isError()) {
+                result.throwException();
+            }
+
+            if (!mapped.hasRemaining()) {
+                decoder.flush(chars);
+                flushed = true;
+            }
+
+            var read = chars.position() - offset;
+            return read == 0 && flushed ? -1 : read;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package net.pistonmaster.ijvm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A program whose methods are linked the first time they are invoked.
+ * <p>
+ * Every method has its constant pool slot from the start, but the slot holds {@link #UNLINKED} until the method body
+ * is emitted. {@link Processor} asks its {@link MethodLinker} to link such methods when INVOKEVIRTUAL targets them,
+ * so only code that actually runs is ever written. LDC_W of an unlinked method slot reads {@link #UNLINKED}.
+ * <p>
+ * Processors created from the same lazy program share its memory and must run on the same thread.
+ */
+public class LazyProgram implements MethodLinker {
+    public static final int UNLINKED = -1;
+    public final ProgramMemory constantPool;
+    public final ProgramMemory methodArea = new ProgramMemory(0);
+    private final Map<String, Integer> constants;
+    private final String[] methodsBySlot;
+    private final Map<String, ProgramDefinition.MethodBodyBuilder> bodies;
+    private final Map<String, Integer> methods = new LinkedHashMap<>();
+
+    LazyProgram(ProgramMemory constantPool, Map<String, Integer> constants, String[] methodsBySlot,
+                Map<String, ProgramDefinition.MethodBodyBuilder> bodies) {
+        this.constantPool = constantPool;
+        this.constants = constants;
+        this.methodsBySlot = methodsBySlot;
+        this.bodies = bodies;
+    }
+
+    /**
+     * Returns the address of a method, linking it first if needed.
+     *
+     * @param method The method name.
+     * @return The method area address of the method.
+     */
+    public int methodAddress(String method) {
+        var address = methods.get(method);
+        if (address != null) {
+            return address;
+        }
+
+        var body = bodies.get(method);
+        if (body == null) {
+            throw new IllegalArgumentException("Method not found: " + method);
+        }
+
+        // The method area grows geometrically, so linking many methods one by one stays linear
+        address = methodArea.size();
+        methodArea.ensureCapacity(address + 4 + body.byteSize());
+        ProgramDefinition.ProgramDefinitionBuilder.writeMethod(methodArea, address, body, constants);
+        methods.put(method, address);
+        constantPool.writeBigEndianInt(constants.get(method), address);
+        return address;
+    }
+
+    @Override
+    public int link(int constantPoolIndex) {
+        var method = constantPoolIndex < methodsBySlot.length ? methodsBySlot[constantPoolIndex] : null;
+        if (method == null) {
+            throw new IllegalStateException("Constant pool index " + constantPoolIndex + " is not a method");
+        }
+
+        return methodAddress(method);
+    }
+
+    public boolean isLinked(String method) {
+        return methods.containsKey(method);
+    }
+
+    /**
+     * @return Addresses of the methods linked so far, in link order.
+     */
+    public Map<String, Integer> linkedMethods() {
+        return methods;
+    }
+
+    public int methodAreaSize() {
+        return methodArea.size();
+    }
+
+    /**
+     * @return A program definition of the current state, unlinked method slots hold {@link #UNLINKED}.
+     */
+    public ProgramDefinition snapshot() {
+        return new ProgramDefinition(constantPool.copyStorage(), methodArea.copyStorage(), new LinkedHashMap<>(constants), new LinkedHashMap<>(methods));
+    }
+}
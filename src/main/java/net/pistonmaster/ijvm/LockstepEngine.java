@@ -0,0 +1,330 @@
+package net.pistonmaster.ijvm;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs one method over many inputs at once, one input per lane.
+ * <p>
+ * The operand stack and local variables are stored as structure of arrays, one {@code int[]} with a value per
+ * lane for every slot, and data instructions are applied to all lanes with {@link IntVector} operations.
+ * Lanes that take different sides of a branch are split into groups with their own lane mask. The group with the
+ * lowest program counter runs first, so groups meet again at the join point and are merged back together.
+ * <p>
+ * The method must not call other methods or use WIDE, and all paths reaching an instruction must agree on the
+ * stack depth.
+ */
+public class LockstepEngine {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final Set<Instruction> SUPPORTED = EnumSet.of(Instruction.BIPUSH, Instruction.DUP, Instruction.GOTO,
+            Instruction.IADD, Instruction.IAND, Instruction.IFEQ, Instruction.IFLT, Instruction.IF_ICMPEQ,
+            Instruction.IINC, Instruction.ILOAD, Instruction.IOR, Instruction.IRETURN, Instruction.ISTORE,
+            Instruction.ISUB, Instruction.LDC_W, Instruction.NOP, Instruction.POP, Instruction.SWAP);
+    private final ProgramMemory constantPool;
+    private final String method;
+    private final int codeStart;
+    private final int parameterCount;
+    private final int localVariableCount;
+    private final BytecodeDecoder.DecodedInstruction[] instructions;
+
+    public LockstepEngine(ProgramDefinition definition, String method) {
+        var methodAddress = definition.methods().get(method);
+        if (methodAddress == null) {
+            throw new IllegalArgumentException("Method not found: " + method);
+        }
+
+        var methodArea = new ProgramMemory(definition.methodArea());
+        var decoder = new BytecodeDecoder(definition);
+        this.constantPool = new ProgramMemory(definition.constantPool());
+        this.method = method;
+        this.codeStart = methodAddress + 4;
+        this.parameterCount = methodArea.readUnsignedBigEndianShort(methodAddress);
+        this.localVariableCount = methodArea.readUnsignedBigEndianShort(methodAddress + 2);
+        this.instructions = new BytecodeDecoder.DecodedInstruction[decoder.methodEnd(methodAddress) - codeStart];
+        for (var instruction : decoder.decodeMethod(methodAddress)) {
+            if (!SUPPORTED.contains(instruction.instruction()) || instruction.wide()) {
+                throw new IllegalArgumentException((instruction.wide() ? "WIDE " : "") + instruction.instruction()
+                        + " at " + instruction.address() + " is not supported in lockstep execution");
+            }
+
+            instructions[instruction.address() - codeStart] = instruction;
+        }
+    }
+
+    /**
+     * @param arguments The method arguments of every lane, without OBJREF.
+     * @return The return value of every lane.
+     */
+    public int[] run(int[][] arguments) {
+        var lanes = arguments.length;
+        var paddedLanes = (lanes + SPECIES.length() - 1) / SPECIES.length() * SPECIES.length();
+        var execution = new Execution(lanes, paddedLanes);
+
+        for (int lane = 0; lane < lanes; lane++) {
+            if (arguments[lane].length != parameterCount - 1) {
+                throw new IllegalArgumentException("Lane " + lane + " has " + arguments[lane].length + " arguments, " + method + " takes " + (parameterCount - 1));
+            }
+
+            for (int parameter = 1; parameter < parameterCount; parameter++) {
+                execution.locals[parameter][lane] = arguments[lane][parameter - 1];
+            }
+        }
+
+        execution.run();
+        return Arrays.copyOf(execution.results, lanes);
+    }
+
+    private final class Execution {
+        private final int lanes;
+        private final int paddedLanes;
+        private final int[][] locals;
+        private final int[] results;
+        private final List<Group> groups = new ArrayList<>();
+        private int[][] stack;
+
+        private Execution(int lanes, int paddedLanes) {
+            this.lanes = lanes;
+            this.paddedLanes = paddedLanes;
+            this.locals = new int[parameterCount + localVariableCount][paddedLanes];
+            this.results = new int[paddedLanes];
+            this.stack = new int[0][];
+
+            var mask = new boolean[paddedLanes];
+            Arrays.fill(mask, 0, lanes, true);
+            if (lanes > 0) {
+                groups.add(new Group(codeStart, -1, mask, lanes));
+            }
+        }
+
+        private void run() {
+            while (!groups.isEmpty()) {
+                step(nextGroup());
+            }
+        }
+
+        /**
+         * Picks the group with the lowest program counter and merges all groups waiting at the same instruction.
+         */
+        private Group nextGroup() {
+            var next = groups.get(0);
+            for (var group : groups) {
+                if (group.pc < next.pc) {
+                    next = group;
+                }
+            }
+
+            for (var iterator = groups.iterator(); iterator.hasNext(); ) {
+                var group = iterator.next();
+                if (group == next || group.pc != next.pc) {
+                    continue;
+                }
+
+                if (group.sp != next.sp) {
+                    throw new IllegalStateException("Lanes reach address " + next.pc + " with different stack depths");
+                }
+
+                for (int lane = 0; lane < paddedLanes; lane++) {
+                    next.mask[lane] |= group.mask[lane];
+                }
+
+                next.updateFull();
+                iterator.remove();
+            }
+
+            return next;
+        }
+
+        private void step(Group group) {
+            var instruction = instructions[group.pc - codeStart];
+            switch (instruction.instruction()) {
+                case BIPUSH -> broadcast(group, instruction.operand());
+                case DUP -> {
+                    ensureStack(group.sp + 1);
+                    copy(group, stack[group.sp], stack[group.sp + 1]);
+                    group.sp++;
+                }
+                case GOTO -> group.pc = instruction.branchTarget();
+                case IADD -> binary(group, VectorOperators.ADD);
+                case IAND -> binary(group, VectorOperators.AND);
+                case IFEQ -> branch(group, instruction, VectorOperators.EQ, null);
+                case IFLT -> branch(group, instruction, VectorOperators.LT, null);
+                case IF_ICMPEQ -> branch(group, instruction, VectorOperators.EQ, stack[group.sp - 1]);
+                case IINC -> {
+                    var variable = locals[instruction.operand()];
+                    for (int i = 0; i < paddedLanes; i += SPECIES.length()) {
+                        var result = IntVector.fromArray(SPECIES, variable, i).add(instruction.increment());
+                        store(group, result, variable, i);
+                    }
+                }
+                case ILOAD -> {
+                    ensureStack(group.sp + 1);
+                    copy(group, locals[instruction.operand()], stack[group.sp + 1]);
+                    group.sp++;
+                }
+                case IOR -> binary(group, VectorOperators.OR);
+                case IRETURN -> {
+                    copy(group, stack[group.sp], results);
+                    groups.remove(group);
+                    return;
+                }
+                case ISTORE -> {
+                    copy(group, stack[group.sp], locals[instruction.operand()]);
+                    group.sp--;
+                }
+                case ISUB -> binary(group, VectorOperators.SUB);
+                case LDC_W -> broadcast(group, constantPool.readBigEndianInt(instruction.operand() * MemoryPointer.WORD_SIZE));
+                case NOP -> {
+                    // Nothing to do
+                }
+                case POP -> group.sp--;
+                case SWAP -> {
+                    var top = stack[group.sp];
+                    var below = stack[group.sp - 1];
+                    for (int i = 0; i < paddedLanes; i += SPECIES.length()) {
+                        var topVector = IntVector.fromArray(SPECIES, top, i);
+                        var belowVector = IntVector.fromArray(SPECIES, below, i);
+                        store(group, belowVector, top, i);
+                        store(group, topVector, below, i);
+                    }
+                }
+                default -> throw new IllegalStateException(instruction.instruction() + " is not supported in lockstep execution");
+            }
+
+            if (!instruction.isBranch() && instruction.instruction() != Instruction.IRETURN) {
+                group.pc += instruction.length();
+            }
+        }
+
+        private void broadcast(Group group, int value) {
+            ensureStack(group.sp + 1);
+            var target = stack[group.sp + 1];
+            var vector = IntVector.broadcast(SPECIES, value);
+            for (int i = 0; i < paddedLanes; i += SPECIES.length()) {
+                store(group, vector, target, i);
+            }
+
+            group.sp++;
+        }
+
+        private void copy(Group group, int[] source, int[] target) {
+            for (int i = 0; i < paddedLanes; i += SPECIES.length()) {
+                store(group, IntVector.fromArray(SPECIES, source, i), target, i);
+            }
+        }
+
+        private void binary(Group group, VectorOperators.Binary operator) {
+            var right = stack[group.sp];
+            var left = stack[group.sp - 1];
+            for (int i = 0; i < paddedLanes; i += SPECIES.length()) {
+                var result = IntVector.fromArray(SPECIES, left, i).lanewise(operator, IntVector.fromArray(SPECIES, right, i));
+                store(group, result, left, i);
+            }
+
+            group.sp--;
+        }
+
+        /**
+         * Compares the top of the stack against zero, or against the word below it for IF_ICMPEQ,
+         * and splits the group if only some of its lanes take the branch.
+         */
+        private void branch(Group group, BytecodeDecoder.DecodedInstruction instruction,
+                            VectorOperators.Comparison comparison, int[] other) {
+            var top = stack[group.sp];
+            var zero = IntVector.zero(SPECIES);
+            var takenCount = 0;
+            for (int i = 0; i < paddedLanes; i += SPECIES.length()) {
+                takenCount += takenMask(group, top, other, zero, comparison, i).trueCount();
+            }
+
+            group.sp -= other == null ? 1 : 2;
+            var fallThrough = instruction.address() + instruction.length();
+            if (takenCount == 0) {
+                group.pc = fallThrough;
+            } else if (takenCount == group.activeLanes) {
+                group.pc = instruction.branchTarget();
+            } else {
+                // Divergence, move the lanes taking the branch into their own group
+                var taken = new boolean[paddedLanes];
+                for (int i = 0; i < paddedLanes; i += SPECIES.length()) {
+                    takenMask(group, top, other, zero, comparison, i).intoArray(taken, i);
+                }
+
+                for (int lane = 0; lane < paddedLanes; lane++) {
+                    group.mask[lane] &= !taken[lane];
+                }
+
+                group.updateFull();
+                group.pc = fallThrough;
+                groups.add(new Group(instruction.branchTarget(), group.sp, taken, lanes));
+            }
+        }
+
+        private VectorMask<Integer> takenMask(Group group, int[] top, int[] other, IntVector zero,
+                                              VectorOperators.Comparison comparison, int offset) {
+            var right = other == null ? zero : IntVector.fromArray(SPECIES, other, offset);
+            return IntVector.fromArray(SPECIES, top, offset).compare(comparison, right)
+                    .and(VectorMask.fromArray(SPECIES, group.mask, offset));
+        }
+
+        private void store(Group group, IntVector vector, int[] target, int offset) {
+            if (group.full) {
+                vector.intoArray(target, offset);
+            } else {
+                vector.intoArray(target, offset, VectorMask.fromArray(SPECIES, group.mask, offset));
+            }
+        }
+
+        private void ensureStack(int slot) {
+            if (slot >= stack.length) {
+                var oldLength = stack.length;
+                stack = Arrays.copyOf(stack, Math.max(slot + 1, oldLength * 2));
+                for (int i = oldLength; i < stack.length; i++) {
+                    stack[i] = new int[paddedLanes];
+                }
+            }
+        }
+    }
+
+    private static final class Group {
+        private final boolean[] mask;
+        // Number of real lanes, the mask is padded to a multiple of the species length
+        private final int lanes;
+        private int pc;
+        // Index of the top stack slot, -1 for an empty stack
+        private int sp;
+        private int activeLanes;
+        // Whether every real lane is active, which allows unmasked stores. Padding lanes are never read back,
+        // so it does not matter that those stores write them as well
+        private boolean full;
+
+        private Group(int pc, int sp, boolean[] mask, int lanes) {
+            this.pc = pc;
+            this.sp = sp;
+            this.mask = mask;
+            this.lanes = lanes;
+            updateFull();
+        }
+
+        /**
+         * Recounts the active lanes after the mask changed.
+         */
+        private void updateFull() {
+            activeLanes = 0;
+            for (var active : mask) {
+                if (active) {
+                    activeLanes++;
+                }
+            }
+
+            full = activeLanes == lanes;
+        }
+    }
+}
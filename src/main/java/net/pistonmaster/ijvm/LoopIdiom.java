@@ -0,0 +1,98 @@
+package net.pistonmaster.ijvm;
+
+import java.util.List;
+
+/**
+ * A counting loop whose effect has a closed form.
+ * <p>
+ * Every iteration adds {@code step} to the counter and a loop invariant amount to each accumulator, and the loop
+ * exits once the counter equals the limit. The test runs before the body for while loops and after it for do-while
+ * loops. All arithmetic wraps around like the 32-bit instructions it replaces.
+ *
+ * @param header        Address of the first instruction of the loop, where the closed form is applied.
+ * @param exit          Address execution continues at once the loop is done.
+ * @param counter       Variable number of the induction variable.
+ * @param step          Amount the counter changes by per iteration, never zero.
+ * @param limit         Value the counter is compared against.
+ * @param testFirst     Whether the exit test runs before the body.
+ * @param accumulations Loop invariant updates of other variables, applied once per iteration.
+ */
+public record LoopIdiom(int header, int exit, int counter, int step, Value limit, boolean testFirst,
+                        List<Accumulation> accumulations) {
+    /**
+     * Applies the whole loop to the local variables of a frame.
+     *
+     * @param stack The stack memory holding the frame.
+     * @param lv    The local variable pointer of the frame.
+     * @return false if the loop never terminates, the frame is left untouched then.
+     */
+    public boolean execute(IMemory stack, int lv) {
+        var counterAddress = lv + counter * MemoryPointer.WORD_SIZE;
+        var start = stack.readBigEndianInt(counterAddress);
+        var iterations = tripCount(start, limit.read(stack, lv));
+        if (iterations < 0) {
+            return false;
+        }
+
+        // Only the low 32 bits of the trip count matter with wraparound
+        var n = (int) iterations;
+        for (var accumulation : accumulations) {
+            var address = lv + accumulation.variable * MemoryPointer.WORD_SIZE;
+            var delta = accumulation.operand.read(stack, lv);
+            stack.writeBigEndianInt(address, stack.readBigEndianInt(address) + n * (accumulation.subtract ? -delta : delta));
+        }
+
+        stack.writeBigEndianInt(counterAddress, start + n * step);
+        return true;
+    }
+
+    /**
+     * Solves {@code start + n * step == limit} modulo 2^32 for the smallest n the loop can stop at.
+     *
+     * @return The number of iterations, or -1 if the counter never reaches the limit.
+     */
+    public long tripCount(int start, int limit) {
+        var difference = limit - start;
+        var shift = Integer.numberOfTrailingZeros(step);
+        if ((difference & ((1 << shift) - 1)) != 0) {
+            return -1;
+        }
+
+        // With an even step only the upper bits take part, the odd part of the step is invertible
+        var modulus = 1L << (32 - shift);
+        var n = ((difference >> shift) * inverse(step >> shift) & 0xFFFFFFFFL) & (modulus - 1);
+        if (n == 0 && !testFirst) {
+            // A do-while loop runs at least once, so it only stops after a full period
+            return modulus;
+        }
+
+        return n;
+    }
+
+    /**
+     * Multiplicative inverse of an odd number modulo 2^32 by Newton iteration.
+     */
+    private static int inverse(int odd) {
+        var inverse = odd;
+        for (int i = 0; i < 4; i++) {
+            inverse *= 2 - odd * inverse;
+        }
+
+        return inverse;
+    }
+
+    /**
+     * A constant or the value of a loop invariant variable.
+     */
+    public record Value(boolean variable, int value) {
+        public int read(IMemory stack, int lv) {
+            return variable ? stack.readBigEndianInt(lv + value * MemoryPointer.WORD_SIZE) : value;
+        }
+    }
+
+    /**
+     * {@code variable = variable + operand} or {@code variable - operand} once per iteration.
+     */
+    public record Accumulation(int variable, Value operand, boolean subtract) {
+    }
+}
@@ -0,0 +1,188 @@
+package net.pistonmaster.ijvm;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds counting loops in method bytecode that can be replaced by a {@link LoopIdiom}.
+ * <p>
+ * A loop is a backward GOTO whose body has no other branches except the exit test, either
+ * {@code ILOAD counter; IFEQ exit} or {@code ILOAD counter; <value>; IF_ICMPEQ exit} in any operand order, at the
+ * start or at the end of the body. The rest of the body may only consist of {@code IINC} and
+ * {@code acc = acc + value} or {@code acc = acc - value} statements, where values are constants or variables
+ * that the loop does not write.
+ */
+public class LoopIdiomRecognizer {
+    public static List<LoopIdiom> recognize(ProgramDefinition definition, String method) {
+        var methodAddress = definition.methods().get(method);
+        if (methodAddress == null) {
+            throw new IllegalArgumentException("Method not found: " + method);
+        }
+
+        return recognize(new BytecodeDecoder(definition).decodeMethod(methodAddress), new ProgramMemory(definition.constantPool()));
+    }
+
+    static List<LoopIdiom> recognize(List<BytecodeDecoder.DecodedInstruction> instructions, ProgramMemory constantPool) {
+        List<LoopIdiom> idioms = new ArrayList<>();
+        for (int end = 0; end < instructions.size(); end++) {
+            var jump = instructions.get(end);
+            if (jump.instruction() != Instruction.GOTO || jump.branchTarget() >= jump.opcodeAddress()) {
+                continue;
+            }
+
+            var start = indexOf(instructions, jump.branchTarget());
+            if (start == -1) {
+                continue;
+            }
+
+            var idiom = match(instructions.subList(start, end), jump.branchTarget(), jump.address() + jump.length(), constantPool);
+            if (idiom != null) {
+                idioms.add(idiom);
+            }
+        }
+
+        return List.copyOf(idioms);
+    }
+
+    private static LoopIdiom match(List<BytecodeDecoder.DecodedInstruction> body, int header, int exit, ProgramMemory constantPool) {
+        for (var testLength : new int[]{2, 3}) {
+            if (body.size() < testLength) {
+                continue;
+            }
+
+            // Test at the end, do-while
+            var idiom = match(body.subList(body.size() - testLength, body.size()), body.subList(0, body.size() - testLength),
+                    header, exit, false, constantPool);
+            if (idiom != null) {
+                return idiom;
+            }
+
+            // Test at the start, while
+            idiom = match(body.subList(0, testLength), body.subList(testLength, body.size()), header, exit, true, constantPool);
+            if (idiom != null) {
+                return idiom;
+            }
+        }
+
+        return null;
+    }
+
+    private static LoopIdiom match(List<BytecodeDecoder.DecodedInstruction> test, List<BytecodeDecoder.DecodedInstruction> statements,
+                                   int header, int exit, boolean testFirst, ProgramMemory constantPool) {
+        var branch = test.get(test.size() - 1);
+        if (!branch.isBranch() || branch.instruction() == Instruction.GOTO || branch.branchTarget() != exit) {
+            return null;
+        }
+
+        if (test.size() == 2 && branch.instruction() == Instruction.IFEQ && test.get(0).instruction() == Instruction.ILOAD) {
+            return matchStatements(statements, header, exit, test.get(0).operand(), new LoopIdiom.Value(false, 0), testFirst, constantPool);
+        }
+
+        if (test.size() != 3 || branch.instruction() != Instruction.IF_ICMPEQ) {
+            return null;
+        }
+
+        // Either side of the comparison may be the counter
+        for (int side = 0; side < 2; side++) {
+            var counter = test.get(side);
+            var limit = value(test.get(1 - side), constantPool);
+            if (counter.instruction() == Instruction.ILOAD && limit != null) {
+                var idiom = matchStatements(statements, header, exit, counter.operand(), limit, testFirst, constantPool);
+                if (idiom != null) {
+                    return idiom;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static LoopIdiom matchStatements(List<BytecodeDecoder.DecodedInstruction> statements, int header, int exit,
+                                             int counter, LoopIdiom.Value limit, boolean testFirst, ProgramMemory constantPool) {
+        var step = 0;
+        List<LoopIdiom.Accumulation> accumulations = new ArrayList<>();
+        Set<Integer> written = new HashSet<>();
+        List<LoopIdiom.Value> read = new ArrayList<>();
+        read.add(limit);
+
+        var i = 0;
+        while (i < statements.size()) {
+            var instruction = statements.get(i);
+            if (instruction.instruction() == Instruction.NOP) {
+                i++;
+            } else if (instruction.instruction() == Instruction.IINC) {
+                if (instruction.operand() == counter) {
+                    step += instruction.increment();
+                } else {
+                    accumulations.add(new LoopIdiom.Accumulation(instruction.operand(), new LoopIdiom.Value(false, instruction.increment()), false));
+                    written.add(instruction.operand());
+                }
+
+                i++;
+            } else if (i + 3 < statements.size()) {
+                // ILOAD acc; <value>; IADD or ISUB; ISTORE acc, or <value>; ILOAD acc; IADD; ISTORE acc
+                var first = statements.get(i);
+                var second = statements.get(i + 1);
+                var operation = statements.get(i + 2).instruction();
+                var store = statements.get(i + 3);
+                if (store.instruction() != Instruction.ISTORE || (operation != Instruction.IADD && operation != Instruction.ISUB)) {
+                    return null;
+                }
+
+                LoopIdiom.Value operand;
+                if (first.instruction() == Instruction.ILOAD && first.operand() == store.operand()) {
+                    operand = value(second, constantPool);
+                } else if (operation == Instruction.IADD && second.instruction() == Instruction.ILOAD && second.operand() == store.operand()) {
+                    operand = value(first, constantPool);
+                } else {
+                    return null;
+                }
+
+                if (operand == null) {
+                    return null;
+                }
+
+                accumulations.add(new LoopIdiom.Accumulation(store.operand(), operand, operation == Instruction.ISUB));
+                written.add(store.operand());
+                read.add(operand);
+                i += 4;
+            } else {
+                return null;
+            }
+        }
+
+        if (step == 0 || written.contains(counter)) {
+            return null;
+        }
+
+        // Operands and the limit must be loop invariant
+        for (var value : read) {
+            if (value.variable() && (value.value() == counter || written.contains(value.value()))) {
+                return null;
+            }
+        }
+
+        return new LoopIdiom(header, exit, counter, step, limit, testFirst, List.copyOf(accumulations));
+    }
+
+    private static LoopIdiom.Value value(BytecodeDecoder.DecodedInstruction instruction, ProgramMemory constantPool) {
+        return switch (instruction.instruction()) {
+            case BIPUSH -> new LoopIdiom.Value(false, instruction.operand());
+            case ILOAD -> new LoopIdiom.Value(true, instruction.operand());
+            case LDC_W -> new LoopIdiom.Value(false, constantPool.readBigEndianInt(instruction.operand() * MemoryPointer.WORD_SIZE));
+            default -> null;
+        };
+    }
+
+    private static int indexOf(List<BytecodeDecoder.DecodedInstruction> instructions, int address) {
+        for (int i = 0; i < instructions.size(); i++) {
+            if (instructions.get(i).address() == address) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
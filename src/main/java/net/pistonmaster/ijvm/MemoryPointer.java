@@ -3,10 +3,10 @@ package net.pistonmaster.ijvm;
 public class MemoryPointer {
     // How many words per element in the stack and constant pool
     public static final int WORD_SIZE = 4;
-    private final ProgramMemory memory;
+    private final IMemory memory;
     private int pointer;
 
-    public MemoryPointer(ProgramMemory memory) {
+    public MemoryPointer(IMemory memory) {
         this.memory = memory;
         this.pointer = 0;
     }
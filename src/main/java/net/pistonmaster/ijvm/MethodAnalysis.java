@@ -0,0 +1,43 @@
+package net.pistonmaster.ijvm;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What the compiler derives from a linked method before it can compile it. A {@link ProgramImage} stores it, so a
+ * warm start compiles without decoding and analyzing the bytecode again.
+ *
+ * @param codeEnd      First address behind the method body.
+ * @param instructions The decoded method body.
+ * @param loops        Loops of the method that have a closed form.
+ */
+public record MethodAnalysis(int codeEnd, List<BytecodeDecoder.DecodedInstruction> instructions, List<LoopIdiom> loops) {
+    public static MethodAnalysis analyze(ProgramDefinition definition, String method) {
+        var methodAddress = definition.methods().get(method);
+        if (methodAddress == null) {
+            throw new IllegalArgumentException("Method not found: " + method);
+        }
+
+        var decoder = new BytecodeDecoder(definition);
+        var instructions = decoder.decodeMethod(methodAddress);
+        var loops = LoopIdiomRecognizer.recognize(instructions, new ProgramMemory(definition.constantPool()));
+        return new MethodAnalysis(decoder.methodEnd(methodAddress), List.copyOf(instructions), loops);
+    }
+
+    /**
+     * @return The analysis of every method in link order, leaving out methods whose bytecode does not decode.
+     */
+    public static Map<String, MethodAnalysis> analyzeAll(ProgramDefinition definition) {
+        Map<String, MethodAnalysis> analyses = new LinkedHashMap<>();
+        for (var method : definition.methods().keySet()) {
+            try {
+                analyses.put(method, analyze(definition, method));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                // Left to the interpreter, which fails the same way if the method ever runs
+            }
+        }
+
+        return analyses;
+    }
+}
@@ -0,0 +1,12 @@
+package net.pistonmaster.ijvm;
+
+@FunctionalInterface
+public interface MethodLinker {
+    /**
+     * Links a method whose constant pool slot does not hold an address yet.
+     *
+     * @param constantPoolIndex The INVOKEVIRTUAL dispatch index of the method.
+     * @return The method area address of the linked method.
+     */
+    int link(int constantPoolIndex);
+}
@@ -0,0 +1,158 @@
+package net.pistonmaster.ijvm;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the child processors created by SPAWN and hands their results to JOIN.
+ * <p>
+ * Children share the method area and constant pool of their parent, which are only read while running, and get
+ * a stack of their own. At most {@code maxConcurrentChildren} children run on threads at once, the rest wait in
+ * a queue. A JOIN on a child that has not started yet runs it on the joining thread instead of blocking, so a
+ * limit of zero runs every child inline and a parent never waits on a child that cannot get a thread.
+ * <p>
+ * Children do not get a {@link MethodLinker}, as {@link LazyProgram} is not thread-safe. Link every method a child
+ * may call before spawning it.
+ */
+public class ParallelRuntime {
+    private static final int PENDING = 0;
+    private static final int CLAIMED = 1;
+
+    private final Semaphore threads;
+    private final ThreadFactory threadFactory;
+    private final Map<Integer, Child> children = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedDeque<Child> pending = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger nextHandle = new AtomicInteger();
+    private final AtomicLong startedChildren = new AtomicLong();
+    private final AtomicLong inlinedChildren = new AtomicLong();
+
+    public ParallelRuntime() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelRuntime(int maxConcurrentChildren) {
+        this(maxConcurrentChildren, Thread.ofVirtual().name("ijvm-child-", 0).factory());
+    }
+
+    public ParallelRuntime(int maxConcurrentChildren, ThreadFactory threadFactory) {
+        if (maxConcurrentChildren < 0) {
+            throw new IllegalArgumentException("Negative child limit: " + maxConcurrentChildren);
+        }
+
+        this.threads = new Semaphore(maxConcurrentChildren);
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Queues a child and starts it if a thread is free.
+     *
+     * @return The handle JOIN takes to collect the result.
+     */
+    public int spawn(Processor child) {
+        var handle = nextHandle.getAndIncrement();
+        var entry = new Child(child);
+        children.put(handle, entry);
+        pending.addLast(entry);
+        startPending();
+
+        return handle;
+    }
+
+    /**
+     * Waits for a child and returns the value its method returned. Children that have not started yet run on the
+     * calling thread.
+     */
+    public int join(int handle) {
+        var child = children.remove(handle);
+        if (child == null) {
+            throw new IllegalStateException("Unknown child handle: " + handle);
+        }
+
+        if (child.claim()) {
+            pending.remove(child);
+            inlinedChildren.incrementAndGet();
+            child.run();
+        } else {
+            try {
+                child.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while joining child " + handle, e);
+            }
+        }
+
+        if (child.failure != null) {
+            throw new IllegalStateException("Spawned method failed", child.failure);
+        }
+
+        return child.result;
+    }
+
+    /**
+     * @return The number of children that ran on a thread of their own.
+     */
+    public long startedChildren() {
+        return startedChildren.get();
+    }
+
+    /**
+     * @return The number of children that ran on the thread that joined them.
+     */
+    public long inlinedChildren() {
+        return inlinedChildren.get();
+    }
+
+    private void startPending() {
+        while (!pending.isEmpty() && threads.tryAcquire()) {
+            var child = pending.pollFirst();
+            if (child == null || !child.claim()) {
+                // Taken by a joiner in the meantime
+                threads.release();
+                continue;
+            }
+
+            startedChildren.incrementAndGet();
+            threadFactory.newThread(() -> {
+                try {
+                    child.run();
+                } finally {
+                    threads.release();
+                    startPending();
+                }
+            }).start();
+        }
+    }
+
+    private static class Child {
+        private final Processor processor;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private int result;
+        private Throwable failure;
+
+        private Child(Processor processor) {
+            this.processor = processor;
+        }
+
+        private boolean claim() {
+            return state.compareAndSet(PENDING, CLAIMED);
+        }
+
+        private void run() {
+            try {
+                processor.run();
+                result = processor.stack.readBigEndianInt(0);
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+}
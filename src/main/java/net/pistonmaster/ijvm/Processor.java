@@ -1,36 +1,77 @@
 package net.pistonmaster.ijvm;
 
-import java.util.function.BinaryOperator;
-
 public class Processor {
     public final ProgramMemory constantPool;
-    public final ProgramMemory stack = new ProgramMemory(0);
+    // Typed as the memory interface it had before it became a StackMemory, so callers keep compiling
+    public final IMemory stack;
     public final ProgramMemory methodArea;
     // CPP = Constant Pool Pointer
     public final MemoryPointer constantPoolPointer;
     // SP = Stack Pointer
-    public final MemoryPointer stackPointer = new MemoryPointer(stack);
+    public final MemoryPointer stackPointer;
     // LV = Local Variable Pointer
-    public final MemoryPointer localVariablePointer = new MemoryPointer(stack);
+    public final MemoryPointer localVariablePointer;
     // PC = Program Counter
     public final MemoryPointer methodAreaPointer;
+    private final StackMemory stackMemory;
+    private final int initialMethodPointer;
+    // Called for BREAKPOINT opcodes patched in by a debugger
+    public TrapHandler trapHandler;
+    // Called for INVOKEVIRTUAL of methods that are not linked yet
+    public MethodLinker methodLinker;
+    // Runs the children of SPAWN and JOIN
+    public ParallelRuntime parallelRuntime;
 
     public Processor(ProgramDefinition definition, String initialMethod) {
-        this(definition.constantPool(), definition.methodArea(), definition.methods().get(initialMethod));
+        this(definition, initialMethod, new StackMemory());
+    }
+
+    public Processor(ProgramDefinition definition, String initialMethod, StackMemory stack) {
+        this(definition.constantPool(), definition.methodArea(), definition.methods().get(initialMethod), stack);
     }
 
     public Processor(byte[] constantPool, byte[] methodArea, int initialMethodPointer) {
-        this.constantPool = new ProgramMemory(constantPool);
-        this.methodArea = new ProgramMemory(methodArea);
+        this(constantPool, methodArea, initialMethodPointer, new StackMemory());
+    }
+
+    public Processor(byte[] constantPool, byte[] methodArea, int initialMethodPointer, StackMemory stack) {
+        this(new ProgramMemory(constantPool), new ProgramMemory(methodArea), initialMethodPointer, stack);
+    }
+
+    public Processor(LazyProgram program, String initialMethod) {
+        this(program, initialMethod, new StackMemory());
+    }
+
+    public Processor(LazyProgram program, String initialMethod, StackMemory stack) {
+        this(program.constantPool, program.methodArea, program.methodAddress(initialMethod), stack);
+        this.methodLinker = program;
+    }
+
+    public Processor(ProgramMemory constantPool, ProgramMemory methodArea, int initialMethodPointer, StackMemory stack) {
+        this.constantPool = constantPool;
+        this.methodArea = methodArea;
+        this.stack = stack;
+        this.stackMemory = stack;
         this.constantPoolPointer = new MemoryPointer(this.constantPool);
         this.methodAreaPointer = new MemoryPointer(this.methodArea);
+        this.stackPointer = new MemoryPointer(stack);
+        this.localVariablePointer = new MemoryPointer(stack);
+        this.initialMethodPointer = initialMethodPointer;
 
-        var parameters = this.methodArea.readUnsignedBigEndianShort(this.methodAreaPointer.currentPointer());
-        var localVariables = this.methodArea.readUnsignedBigEndianShort(this.methodAreaPointer.currentPointer() + 2);
+        reset();
+    }
 
-        this.localVariablePointer.setPointer(0);
-        this.stackPointer.setPointer((parameters + localVariables) * MemoryPointer.WORD_SIZE);
-        this.methodAreaPointer.setPointer(initialMethodPointer + 4);
+    /**
+     * Moves the processor back to the start of its initial method, so it can run again without allocating a new
+     * processor. The stack keeps its memory and contents, arguments written to the bottom of the stack stay there.
+     */
+    public void reset() {
+        var parameters = methodArea.readUnsignedBigEndianShort(initialMethodPointer);
+        var localVariables = methodArea.readUnsignedBigEndianShort(initialMethodPointer + 2);
+
+        localVariablePointer.setPointer(0);
+        stackPointer.setPointer((parameters + localVariables) * MemoryPointer.WORD_SIZE);
+        methodAreaPointer.setPointer(initialMethodPointer + 4);
     }
 
     @SuppressWarnings("StatementWithEmptyBody")
@@ -61,14 +102,11 @@ public class Processor {
                 methodAreaPointer.increment();
             }
             case GOTO -> {
+                // Offsets are relative to the GOTO opcode itself
                 var offset = methodArea.readOffset(methodAreaPointer.currentPointer() + 1);
                 methodAreaPointer.movePointer(offset);
-
-                // GOTO <offset-part-1> <offset-part-2>
-                methodAreaPointer.movePointer(3);
             }
-            case IADD -> binaryOperation(Integer::sum);
-            case IAND -> binaryOperation((left, right) -> left & right);
+            case IADD, IAND, IOR, ISUB -> binaryOperation(instruction);
             case IFEQ -> {
                 var offset = methodArea.readOffset(methodAreaPointer.currentPointer() + 1);
                 var value = stackPointer.popWord();
@@ -102,7 +140,7 @@ public class Processor {
             }
             case IINC -> {
                 var index = methodArea.readVarNum(methodAreaPointer.currentPointer() + 1, wide);
-                var value = methodArea.readConst(methodAreaPointer.currentPointer() + 2);
+                var value = methodArea.readConst(methodAreaPointer.currentPointer() + (wide ? 3 : 2));
                 var lvIndex = localVariablePointer.currentPointer() + (index * MemoryPointer.WORD_SIZE);
                 var currentValue = stack.readBigEndianInt(lvIndex);
                 stack.writeBigEndianInt(lvIndex, currentValue + value);
@@ -121,7 +159,7 @@ public class Processor {
             }
             case INVOKEVIRTUAL -> {
                 var dispatch = methodArea.readDisp(methodAreaPointer.currentPointer() + 1);
-                var methodAddress = constantPool.readBigEndianInt(constantPoolPointer.currentPointer() + dispatch * MemoryPointer.WORD_SIZE);
+                var methodAddress = methodAddress(dispatch);
                 var parameterCount = methodArea.readBigEndianShort(methodAddress);
                 var localVariableCount = methodArea.readBigEndianShort(methodAddress + 2);
                 var codeAddress = methodAddress + 4;
@@ -148,7 +186,6 @@ public class Processor {
                 stackPointer.pushWord(returnMethodAreaPointer);
                 stackPointer.pushWord(oldLocalVariablePointer);
             }
-            case IOR -> binaryOperation((left, right) -> left | right);
             case IRETURN -> {
                 var value = stackPointer.popWord();
                 var methodLvPointer = localVariablePointer.currentPointer();
@@ -167,6 +204,9 @@ public class Processor {
 
                 stackPointer.setPointer(methodLvPointer);
                 localVariablePointer.setPointer(oldLvPointer);
+
+                // Give back memory of deep call chains
+                stackMemory.release(methodLvPointer);
             }
             case ISTORE -> {
                 var index = methodArea.readVarNum(methodAreaPointer.currentPointer() + 1, wide);
@@ -177,7 +217,6 @@ public class Processor {
                 // ISTORE <index> OR ISTORE <index-part-1> <index-part-2>
                 methodAreaPointer.movePointer(wide ? 3 : 2);
             }
-            case ISUB -> binaryOperation((left, right) -> left - right);
             case LDC_W -> {
                 var constantPoolIndex = methodArea.readIndex(methodAreaPointer.currentPointer() + 1);
                 var value = constantPool.readBigEndianInt(constantPoolPointer.currentPointer() + constantPoolIndex * MemoryPointer.WORD_SIZE);
@@ -207,16 +246,76 @@ public class Processor {
                 methodAreaPointer.increment();
                 return tick(true);
             }
+            case BREAKPOINT -> {
+                if (trapHandler == null) {
+                    throw new IllegalStateException("Hit a breakpoint without a trap handler");
+                }
+
+                return trapHandler.onTrap(this);
+            }
+            case SPAWN -> {
+                var runtime = requireParallelRuntime();
+                var methodAddress = methodAddress(methodArea.readDisp(methodAreaPointer.currentPointer() + 1));
+                var parameterCount = methodArea.readUnsignedBigEndianShort(methodAddress);
+
+                // The child shares the program but has its own stack, arguments and OBJREF go to its bottom
+                var child = new Processor(constantPool, methodArea, methodAddress, new StackMemory());
+                child.parallelRuntime = runtime;
+                for (int i = parameterCount - 1; i >= 0; i--) {
+                    child.stack.writeBigEndianInt(i * MemoryPointer.WORD_SIZE, stackPointer.popWord());
+                }
+
+                stackPointer.pushWord(runtime.spawn(child));
+
+                // SPAWN <dispatch-part-1> <dispatch-part-2>
+                methodAreaPointer.movePointer(3);
+            }
+            case JOIN -> {
+                var runtime = requireParallelRuntime();
+                stackPointer.pushWord(runtime.join(stackPointer.popWord()));
+
+                // JOIN
+                methodAreaPointer.increment();
+            }
             default -> throw new IllegalStateException("Unsupported value: " + instruction);
         }
 
         return false;
     }
 
-    private void binaryOperation(BinaryOperator<Integer> operator) {
+    private int methodAddress(int dispatch) {
+        var methodAddress = constantPool.readBigEndianInt(constantPoolPointer.currentPointer() + dispatch * MemoryPointer.WORD_SIZE);
+        if (methodAddress == LazyProgram.UNLINKED) {
+            if (methodLinker == null) {
+                throw new IllegalStateException("Invoked an unlinked method without a method linker");
+            }
+
+            methodAddress = methodLinker.link(dispatch);
+        }
+
+        return methodAddress;
+    }
+
+    private ParallelRuntime requireParallelRuntime() {
+        if (parallelRuntime == null) {
+            throw new IllegalStateException("SPAWN and JOIN need a parallel runtime");
+        }
+
+        return parallelRuntime;
+    }
+
+    private void binaryOperation(Instruction instruction) {
         var right = stackPointer.popWord();
         var left = stackPointer.popWord();
-        stackPointer.pushWord(operator.apply(left, right));
+
+        // Plain ints, an operator object would box every operand and result
+        stackPointer.pushWord(switch (instruction) {
+            case IADD -> left + right;
+            case IAND -> left & right;
+            case IOR -> left | right;
+            case ISUB -> left - right;
+            default -> throw new IllegalArgumentException("Not a binary operation: " + instruction);
+        });
 
         // OPERATION NAME
         methodAreaPointer.increment();
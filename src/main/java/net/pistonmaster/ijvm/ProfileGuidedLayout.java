@@ -0,0 +1,379 @@
+package net.pistonmaster.ijvm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Relinks a program using an {@link ExecutionProfile} to improve code locality.
+ * <p>
+ * Methods are chained greedily along their heaviest call edges, so hot callers and callees end up next to each other,
+ * and chains are ordered by how often their methods were invoked.
+ * <p>
+ * Inside executed methods, blocks are chained the same way along their heaviest control flow edges, using the taken
+ * and not-taken counts of conditional branches, so the likely successor of a block is placed right behind it.
+ * A branch side taken less than once per {@link #RARE_EDGE_RATIO} executions of the branch is rare, and blocks only
+ * reached through rare edges are cold and move behind all hot blocks. IJVM has no inverted conditional branches, so
+ * fall-through edges into moved blocks are redirected with a GOTO that only runs on the cold path, and GOTOs that now
+ * target the next block are removed.
+ */
+public class ProfileGuidedLayout {
+    public static final int RARE_EDGE_RATIO = 1000;
+
+    public static ProgramDefinition relink(ExecutionProfile profile) {
+        var definition = profile.definition();
+        var decoder = new BytecodeDecoder(definition);
+        var sourceArea = new ProgramMemory(definition.methodArea());
+
+        List<MethodLayout> layouts = new ArrayList<>();
+        var size = 0;
+        for (var method : methodOrder(definition, profile)) {
+            var layout = layoutMethod(decoder, profile, method, definition.methods().get(method));
+            layout.newAddress = size;
+            size += layout.size;
+            layouts.add(layout);
+        }
+
+        var methodArea = new ProgramMemory(size);
+        var constantPool = new ProgramMemory(definition.constantPool().clone());
+        Map<String, Integer> methods = new LinkedHashMap<>();
+        for (var layout : layouts) {
+            layout.emit(sourceArea, methodArea);
+            methods.put(layout.name, layout.newAddress);
+
+            // Method slots in the constant pool hold the method address
+            constantPool.writeBigEndianInt(definition.constants().get(layout.name), layout.newAddress);
+        }
+
+        return new ProgramDefinition(constantPool.storage, methodArea.storage, new LinkedHashMap<>(definition.constants()), methods);
+    }
+
+    /**
+     * Greedily merges call graph chains along the heaviest edges, then orders chains by invocation count.
+     */
+    private static List<String> methodOrder(ProgramDefinition definition, ExecutionProfile profile) {
+        List<String> original = new ArrayList<>(definition.methods().keySet());
+        original.sort(Comparator.comparingInt(definition.methods()::get));
+        Map<String, Integer> originalIndex = new HashMap<>();
+        for (var method : original) {
+            originalIndex.put(method, originalIndex.size());
+        }
+
+        Map<String, List<String>> chains = new HashMap<>();
+        for (var method : original) {
+            chains.put(method, new ArrayList<>(List.of(method)));
+        }
+
+        // Undirected edge weights, keyed by the method pair in original order
+        Map<List<String>, Long> edges = new HashMap<>();
+        for (var caller : profile.callCounts().entrySet()) {
+            for (var callee : caller.getValue().entrySet()) {
+                if (!caller.getKey().equals(callee.getKey())) {
+                    var pair = originalIndex.get(caller.getKey()) < originalIndex.get(callee.getKey())
+                            ? List.of(caller.getKey(), callee.getKey()) : List.of(callee.getKey(), caller.getKey());
+                    edges.merge(pair, callee.getValue(), Long::sum);
+                }
+            }
+        }
+
+        List<Map.Entry<List<String>, Long>> sortedEdges = new ArrayList<>(edges.entrySet());
+        sortedEdges.sort(Map.Entry.<List<String>, Long>comparingByValue().reversed()
+                .thenComparing(entry -> originalIndex.get(entry.getKey().get(0)))
+                .thenComparing(entry -> originalIndex.get(entry.getKey().get(1))));
+
+        for (var edge : sortedEdges) {
+            var first = chains.get(edge.getKey().get(0));
+            var second = chains.get(edge.getKey().get(1));
+            if (first != second) {
+                first.addAll(second);
+                for (var method : second) {
+                    chains.put(method, first);
+                }
+            }
+        }
+
+        // Distinct chains in order of their first method, then hottest first
+        Map<List<String>, Long> chainHeat = new IdentityHashMap<>();
+        List<List<String>> orderedChains = new ArrayList<>();
+        for (var method : original) {
+            var chain = chains.get(method);
+            if (!chainHeat.containsKey(chain)) {
+                orderedChains.add(chain);
+                chainHeat.put(chain, 0L);
+            }
+
+            chainHeat.merge(chain, profile.invocationCount(method), Long::sum);
+        }
+
+        orderedChains.sort(Comparator.comparingLong(chain -> -chainHeat.get(chain)));
+
+        List<String> order = new ArrayList<>();
+        for (var chain : orderedChains) {
+            order.addAll(chain);
+        }
+
+        return order;
+    }
+
+    private static MethodLayout layoutMethod(BytecodeDecoder decoder, ExecutionProfile profile, String name, int address) {
+        var instructions = decoder.decodeMethod(address);
+        var codeStart = address + 4;
+
+        // Block leaders: the method start, branch targets and instructions behind branches and returns
+        Set<Integer> leaders = new TreeSet<>();
+        leaders.add(codeStart);
+        for (var instruction : instructions) {
+            var next = instruction.address() + instruction.length();
+            if (instruction.isBranch()) {
+                leaders.add(instruction.branchTarget());
+                leaders.add(next);
+            } else if (instruction.instruction() == Instruction.IRETURN) {
+                leaders.add(next);
+            }
+        }
+
+        List<Block> blocks = new ArrayList<>();
+        Block current = null;
+        for (var instruction : instructions) {
+            if (current == null || leaders.contains(instruction.address())) {
+                current = new Block(blocks.size(), profile.executionCount(instruction.address()));
+                blocks.add(current);
+            }
+
+            current.instructions.add(instruction);
+        }
+
+        List<Block> order;
+        if (!blocks.isEmpty() && blocks.get(0).count > 0) {
+            order = blockOrder(blocks, profile);
+        } else {
+            // Never executed, keep the method as it is
+            order = blocks;
+        }
+
+        return new MethodLayout(name, address, blocks, order);
+    }
+
+    /**
+     * Chains hot blocks along their heaviest edges, starting with the entry block, and puts cold blocks last.
+     */
+    private static List<Block> blockOrder(List<Block> blocks, ExecutionProfile profile) {
+        Map<Integer, Block> blocksByStart = new HashMap<>();
+        for (var block : blocks) {
+            blocksByStart.put(block.start(), block);
+        }
+
+        List<Edge> edges = new ArrayList<>();
+        for (var block : blocks) {
+            var last = block.last();
+            var next = block.index + 1 < blocks.size() ? blocks.get(block.index + 1) : null;
+            if (last.instruction() == Instruction.GOTO) {
+                addEdge(edges, block, blocksByStart.get(last.branchTarget()), block.count);
+            } else if (last.isBranch()) {
+                var taken = profile.takenCount(last.address());
+                addEdge(edges, block, blocksByStart.get(last.branchTarget()), taken);
+                addEdge(edges, block, next, profile.executionCount(last.address()) - taken);
+            } else if (block.fallsThrough()) {
+                addEdge(edges, block, next, block.count);
+            }
+        }
+
+        // Hot blocks are reached from the entry through edges that are not rare
+        blocks.get(0).hot = true;
+        boolean changed;
+        do {
+            changed = false;
+            for (var edge : edges) {
+                if (edge.source.hot && !edge.target.hot && !edge.rare()) {
+                    edge.target.hot = true;
+                    changed = true;
+                }
+            }
+        } while (changed);
+
+        edges.sort(Comparator.comparingLong((Edge edge) -> -edge.weight)
+                .thenComparingInt(edge -> edge.source.index)
+                .thenComparingInt(edge -> edge.target.index));
+
+        // Join chains where the tail of one has a likely edge to the head of another, the entry block stays a head
+        Map<Block, List<Block>> chains = new IdentityHashMap<>();
+        for (var block : blocks) {
+            chains.put(block, new ArrayList<>(List.of(block)));
+        }
+
+        for (var edge : edges) {
+            var sourceChain = chains.get(edge.source);
+            var targetChain = chains.get(edge.target);
+            if (!edge.source.hot || !edge.target.hot || edge.rare() || edge.target.index == 0 || sourceChain == targetChain
+                    || sourceChain.get(sourceChain.size() - 1) != edge.source || targetChain.get(0) != edge.target) {
+                continue;
+            }
+
+            sourceChain.addAll(targetChain);
+            for (var block : targetChain) {
+                chains.put(block, sourceChain);
+            }
+        }
+
+        // Entry chain first, then hot chains by the count of their head, then cold blocks in their original order
+        List<List<Block>> hotChains = new ArrayList<>();
+        for (var block : blocks) {
+            var chain = chains.get(block);
+            if (block.hot && chain.get(0) == block && block.index != 0) {
+                hotChains.add(chain);
+            }
+        }
+
+        hotChains.sort(Comparator.comparingLong((List<Block> chain) -> -chain.get(0).count)
+                .thenComparingInt(chain -> chain.get(0).index));
+
+        List<Block> order = new ArrayList<>(chains.get(blocks.get(0)));
+        for (var chain : hotChains) {
+            order.addAll(chain);
+        }
+
+        for (var block : blocks) {
+            if (!block.hot) {
+                order.add(block);
+            }
+        }
+
+        return order;
+    }
+
+    private static void addEdge(List<Edge> edges, Block source, Block target, long weight) {
+        if (target != null) {
+            edges.add(new Edge(source, target, weight));
+        }
+    }
+
+    private record Edge(Block source, Block target, long weight) {
+        private boolean rare() {
+            return weight * RARE_EDGE_RATIO < source.count;
+        }
+    }
+
+    private static final class Block {
+        private final int index;
+        private final long count;
+        private final List<BytecodeDecoder.DecodedInstruction> instructions = new ArrayList<>();
+        private boolean hot;
+        private boolean dropTrailingGoto;
+        private Block fallThroughGoto;
+        private int newAddress;
+
+        private Block(int index, long count) {
+            this.index = index;
+            this.count = count;
+        }
+
+        private int start() {
+            return instructions.get(0).address();
+        }
+
+        private BytecodeDecoder.DecodedInstruction last() {
+            return instructions.get(instructions.size() - 1);
+        }
+
+        private boolean fallsThrough() {
+            var instruction = last().instruction();
+            return instruction != Instruction.GOTO && instruction != Instruction.IRETURN;
+        }
+    }
+
+    private static final class MethodLayout {
+        private final String name;
+        private final int address;
+        private final List<Block> order;
+        private final Map<Integer, Block> blocksByStart = new HashMap<>();
+        private final int size;
+        private int newAddress;
+
+        private MethodLayout(String name, int address, List<Block> blocks, List<Block> order) {
+            this.name = name;
+            this.address = address;
+            this.order = order;
+
+            for (var block : blocks) {
+                blocksByStart.put(block.start(), block);
+            }
+
+            // Header with parameter and local variable counts
+            var offset = 4;
+            for (int i = 0; i < order.size(); i++) {
+                var block = order.get(i);
+                var next = i + 1 < order.size() ? order.get(i + 1) : null;
+                block.newAddress = offset;
+
+                for (var instruction : block.instructions) {
+                    offset += instruction.length();
+                }
+
+                var last = block.last();
+                if (last.instruction() == Instruction.GOTO && next != null && blocksByStart.get(last.branchTarget()) == next) {
+                    block.dropTrailingGoto = true;
+                    offset -= last.length();
+                } else if (block.fallsThrough() && block.index + 1 < blocks.size()) {
+                    var originalNext = blocks.get(block.index + 1);
+                    if (originalNext != next) {
+                        block.fallThroughGoto = originalNext;
+                        offset += Instruction.GOTO.getLength(false);
+                    }
+                }
+            }
+
+            this.size = offset;
+        }
+
+        private void emit(ProgramMemory source, ProgramMemory target) {
+            var base = newAddress;
+            for (int i = 0; i < 4; i++) {
+                target.writeByte(base + i, source.readByte(address + i));
+            }
+
+            for (var block : order) {
+                var position = base + block.newAddress;
+                for (var instruction : block.instructions) {
+                    if (block.dropTrailingGoto && instruction == block.last()) {
+                        break;
+                    }
+
+                    for (int i = 0; i < instruction.length(); i++) {
+                        target.writeByte(position + i, source.readByte(instruction.address() + i));
+                    }
+
+                    if (instruction.isBranch()) {
+                        var targetBlock = blocksByStart.get(instruction.branchTarget());
+                        if (targetBlock == null) {
+                            throw new IllegalStateException("Branch at " + instruction.address() + " leaves method " + name);
+                        }
+
+                        writeOffset(target, position, base + targetBlock.newAddress);
+                    }
+
+                    position += instruction.length();
+                }
+
+                if (block.fallThroughGoto != null) {
+                    target.writeByte(position, Instruction.GOTO.getOpcode());
+                    writeOffset(target, position, base + block.fallThroughGoto.newAddress);
+                }
+            }
+        }
+
+        private static void writeOffset(ProgramMemory target, int opcodeAddress, int targetAddress) {
+            var offset = targetAddress - opcodeAddress;
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                throw new IllegalStateException("Branch offset " + offset + " does not fit into 16 bits");
+            }
+
+            target.writeOffset(opcodeAddress + 1, (short) offset);
+        }
+    }
+}
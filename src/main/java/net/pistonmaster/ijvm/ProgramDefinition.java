@@ -1,9 +1,21 @@
 package net.pistonmaster.ijvm;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Represents a program definition.
@@ -50,59 +62,297 @@ public record ProgramDefinition(
         }
 
         public ProgramDefinition link() {
-            var constantPool = new ProgramMemory(0);
+            var constantAddresses = assignConstantPool();
+            var constantPool = new ProgramMemory(constantAddresses.size() * MemoryPointer.WORD_SIZE);
+            writeConstants(constantPool);
+
+            var methodAreaSize = 0;
+            for (var method : methods.values()) {
+                methodAreaSize += 4 + method.byteSize();
+            }
+
+            var methodArea = new ProgramMemory(methodAreaSize);
+            Map<String, Integer> methodAddresses = new LinkedHashMap<>();
+            var methodIndex = 0;
+            for (var method : methods.entrySet()) {
+                methodAddresses.put(method.getKey(), methodIndex);
+                constantPool.writeBigEndianInt(constantAddresses.get(method.getKey()), methodIndex);
+                methodIndex = writeMethod(methodArea, methodIndex, method.getValue(), constantAddresses);
+            }
+
+            return new ProgramDefinition(
+                    constantPool.storage,
+                    methodArea.storage,
+                    constantAddresses,
+                    methodAddresses
+            );
+        }
+
+        /**
+         * Links only the entry methods up front. Every other method keeps its constant pool slot,
+         * but its body is emitted the first time INVOKEVIRTUAL targets it.
+         *
+         * @param entryMethods The methods to link eagerly.
+         * @return The lazily linked program.
+         */
+        public LazyProgram linkLazily(String... entryMethods) {
+            var constantAddresses = assignConstantPool();
+            var constantPool = new ProgramMemory(constantAddresses.size() * MemoryPointer.WORD_SIZE);
+            writeConstants(constantPool);
+
+            var methodsBySlot = new String[constantAddresses.size()];
+            for (var method : methods.keySet()) {
+                var address = constantAddresses.get(method);
+                methodsBySlot[address / MemoryPointer.WORD_SIZE] = method;
+                constantPool.writeBigEndianInt(address, LazyProgram.UNLINKED);
+            }
+
+            var program = new LazyProgram(constantPool, constantAddresses, methodsBySlot, Map.copyOf(methods));
+            for (var entryMethod : entryMethods) {
+                program.methodAddress(entryMethod);
+            }
+
+            return program;
+        }
+
+        /**
+         * Gives every constant and then every method a constant pool slot.
+         *
+         * @return Constant pool addresses by name.
+         */
+        private Map<String, Integer> assignConstantPool() {
             Map<String, Integer> constantAddresses = new LinkedHashMap<>();
+            for (var constant : constants.keySet()) {
+                constantAddresses.put(constant, constantAddresses.size() * MemoryPointer.WORD_SIZE);
+            }
+
+            for (var method : methods.keySet()) {
+                constantAddresses.put(method, constantAddresses.size() * MemoryPointer.WORD_SIZE);
+            }
+
+            return constantAddresses;
+        }
+
+        private void writeConstants(ProgramMemory constantPool) {
+            var address = 0;
+            for (var value : constants.values()) {
+                constantPool.writeBigEndianInt(address, value);
+                address += MemoryPointer.WORD_SIZE;
+            }
+        }
 
+        /**
+         * Writes the method header and body with all constant pool references resolved.
+         *
+         * @return The address behind the method.
+         */
+        static int writeMethod(ProgramMemory methodArea, int address, MethodBodyBuilder body, Map<String, Integer> constantAddresses) {
+            // Parameters + 1 for OBJREF
+            methodArea.writeUnsignedBigEndianShort(address, body.parameterNames.size() + 1);
+
+            // Local variables
+            methodArea.writeUnsignedBigEndianShort(address + 2, body.localVariableNames.size());
+            address += 4;
+
+            for (var byteResolvable : body.bytes) {
+                switch (byteResolvable) {
+                    case MethodInstruction instruction -> methodArea.writeByte(address, instruction.instruction.getOpcode());
+                    case ParameterData parameterData -> methodArea.writeType(address, parameterData.type, parameterData.value);
+                    case ConstantPoolResolvableMethod constantPoolResolvableMethod ->
+                            methodArea.writeUnsignedBigEndianShort(address, constantPoolIndex(constantAddresses, constantPoolResolvableMethod.methodName));
+                    case ConstantPoolResolvableVariable constantPoolResolvableVariable ->
+                            methodArea.writeUnsignedBigEndianShort(address, constantPoolIndex(constantAddresses, constantPoolResolvableVariable.constantName));
+                }
+
+                address += byteSize(byteResolvable);
+            }
+
+            return address;
+        }
+
+        private static int constantPoolIndex(Map<String, Integer> constantAddresses, String name) {
+            var address = constantAddresses.get(name);
+            if (address == null) {
+                throw new IllegalArgumentException("Constant or method not found: " + name);
+            }
+
+            return address / MemoryPointer.WORD_SIZE;
+        }
+
+        /**
+         * Removes methods and constants that can not be reached from the entry methods.
+         * Methods are reached through INVOKEVIRTUAL and SPAWN, constants and method slots through LDC_W and IINC references.
+         * Raw LDC_W indices are renumbered to match the smaller constant pool.
+         *
+         * @param entryMethods The methods execution may start at.
+         * @return A new builder with only the reachable methods and constants.
+         */
+        public StripResult stripUnreachable(String... entryMethods) {
+            // Raw LDC_W indices address this order, constants first and methods behind them
+            List<String> constantPoolOrder = new ArrayList<>(constants.keySet());
+            constantPoolOrder.addAll(methods.keySet());
+
+            Set<String> reachable = new HashSet<>();
+            Deque<String> pendingMethods = new ArrayDeque<>();
+            for (var entryMethod : entryMethods) {
+                if (!methods.containsKey(entryMethod)) {
+                    throw new IllegalArgumentException("Entry method not found: " + entryMethod);
+                }
+
+                if (reachable.add(entryMethod)) {
+                    pendingMethods.add(entryMethod);
+                }
+            }
+
+            while (!pendingMethods.isEmpty()) {
+                for (var byteResolvable : methods.get(pendingMethods.poll()).bytes) {
+                    var referenced = switch (byteResolvable) {
+                        case ConstantPoolResolvableMethod constantPoolResolvableMethod -> constantPoolResolvableMethod.methodName;
+                        case ConstantPoolResolvableVariable constantPoolResolvableVariable -> constantPoolResolvableVariable.constantName;
+                        case ParameterData parameterData -> parameterData.type == IMemory.ParameterType.INDEX
+                                ? constantPoolEntry(constantPoolOrder, parameterData.value) : null;
+                        case MethodInstruction ignored -> null;
+                    };
+
+                    if (referenced != null && reachable.add(referenced) && methods.containsKey(referenced)) {
+                        pendingMethods.add(referenced);
+                    }
+                }
+            }
+
+            var stripped = new ProgramDefinitionBuilder();
             for (var constant : constants.entrySet()) {
-                constantAddresses.put(constant.getKey(), constantPool.storage.length);
-                constantPool.writeBigEndianInt(constantPool.storage.length, constant.getValue());
+                if (reachable.contains(constant.getKey())) {
+                    stripped.putConstant(constant.getKey(), constant.getValue());
+                }
             }
 
-            var methodArea = new ProgramMemory(0);
-            Map<String, Integer> methodAddresses = new LinkedHashMap<>();
-            Map<Integer, String> methodLinkPositions = new LinkedHashMap<>();
+            Map<String, Integer> strippedIndices = new HashMap<>();
+            for (var constant : stripped.constants.keySet()) {
+                strippedIndices.put(constant, strippedIndices.size());
+            }
+
+            for (var method : methods.keySet()) {
+                if (reachable.contains(method)) {
+                    strippedIndices.put(method, strippedIndices.size());
+                }
+            }
 
             for (var method : methods.entrySet()) {
-                var methodIndex = methodArea.storage.length;
-                methodAddresses.put(method.getKey(), methodIndex);
+                if (!reachable.contains(method.getKey())) {
+                    continue;
+                }
 
-                constantAddresses.put(method.getKey(), constantPool.storage.length);
-                constantPool.writeBigEndianInt(constantPool.storage.length, methodIndex);
+                var body = method.getValue();
+                List<MethodByteResolvable> bytes = new ArrayList<>(body.bytes.size());
+                for (var byteResolvable : body.bytes) {
+                    if (byteResolvable instanceof ParameterData parameterData && parameterData.type == IMemory.ParameterType.INDEX) {
+                        var name = constantPoolEntry(constantPoolOrder, parameterData.value);
+                        bytes.add(new ParameterData(IMemory.ParameterType.INDEX, strippedIndices.get(name)));
+                    } else {
+                        bytes.add(byteResolvable);
+                    }
+                }
+
+                stripped.addMethod(method.getKey(), new MethodBodyBuilder(body.parameterNames, body.localVariableNames, bytes));
+            }
+
+            return new StripResult(stripped, methods.size() - stripped.methods.size(),
+                    constants.size() - stripped.constants.size(), linkedSize(), stripped.linkedSize());
+        }
+
+        /**
+         * @return The combined size of the constant pool and method area in bytes once linked.
+         */
+        public int linkedSize() {
+            var size = (constants.size() + methods.size()) * MemoryPointer.WORD_SIZE;
+            for (var method : methods.values()) {
+                // Parameter and local variable counts
+                size += 4 + method.byteSize();
+            }
+
+            return size;
+        }
 
-                // Parameters + 1 for OBJREF
-                methodArea.writeUnsignedBigEndianShort(methodArea.storage.length, method.getValue().parameterNames.size() + 1);
+        private static String constantPoolEntry(List<String> constantPoolOrder, int index) {
+            if (index < 0 || index >= constantPoolOrder.size()) {
+                throw new IllegalArgumentException("Constant pool index out of range: " + index);
+            }
 
-                // Local variables
-                methodArea.writeUnsignedBigEndianShort(methodArea.storage.length, method.getValue().localVariableNames.size());
+            return constantPoolOrder.get(index);
+        }
+
+        /**
+         * Hashes everything that influences {@link #link()}, so equal hashes mean equal linked programs.
+         *
+         * @return The SHA-256 digest of the builder contents.
+         */
+        public byte[] contentHash() {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
 
-                for (var byteResolvable : method.getValue().bytes) {
-                    switch (byteResolvable) {
-                        case MethodInstruction instruction ->
-                                methodArea.writeByte(methodArea.storage.length, instruction.instruction.getOpcode());
-                        case ParameterData parameterData ->
-                                methodArea.writeType(methodArea.storage.length, parameterData.type, parameterData.value);
-                        case ConstantPoolResolvableMethod constantPoolResolvableMethod -> {
-                            methodLinkPositions.put(methodArea.storage.length, constantPoolResolvableMethod.methodName);
+            try (var out = new DataOutputStream(new DigestOutputStream(OutputStream.nullOutputStream(), digest))) {
+                out.writeInt(constants.size());
+                for (var constant : constants.entrySet()) {
+                    out.writeUTF(constant.getKey());
+                    out.writeInt(constant.getValue());
+                }
 
-                            // Write some dummy data so the method can be linked later
-                            methodArea.writeUnsignedBigEndianShort(methodArea.storage.length, 0);
+                out.writeInt(methods.size());
+                for (var method : methods.entrySet()) {
+                    var body = method.getValue();
+                    out.writeUTF(method.getKey());
+                    out.writeInt(body.parameterNames.size());
+                    out.writeInt(body.localVariableNames.size());
+                    out.writeInt(body.bytes.size());
+
+                    for (var byteResolvable : body.bytes) {
+                        switch (byteResolvable) {
+                            case MethodInstruction instruction -> {
+                                out.writeByte(0);
+                                out.writeByte(instruction.instruction.getOpcode());
+                            }
+                            case ParameterData parameterData -> {
+                                out.writeByte(1);
+                                out.writeByte(parameterData.type.ordinal());
+                                out.writeInt(parameterData.value);
+                            }
+                            case ConstantPoolResolvableMethod constantPoolResolvableMethod -> {
+                                out.writeByte(2);
+                                out.writeUTF(constantPoolResolvableMethod.methodName);
+                            }
+                            case ConstantPoolResolvableVariable constantPoolResolvableVariable -> {
+                                out.writeByte(3);
+                                out.writeUTF(constantPoolResolvableVariable.constantName);
+                            }
                         }
-                        case ConstantPoolResolvableVariable constantPoolResolvableVariable ->
-                                methodArea.writeUnsignedBigEndianShort(methodArea.storage.length, constantAddresses.get(constantPoolResolvableVariable.constantName) / 4);
                     }
                 }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
 
-            for (var entry : methodLinkPositions.entrySet()) {
-                methodArea.writeUnsignedBigEndianShort(entry.getKey(), constantAddresses.get(entry.getValue()) / 4);
-            }
+            return digest.digest();
+        }
+    }
 
-            return new ProgramDefinition(
-                    constantPool.copyStorage(),
-                    methodArea.copyStorage(),
-                    constantAddresses,
-                    methodAddresses
-            );
+    /**
+     * Outcome of {@link ProgramDefinitionBuilder#stripUnreachable(String...)}.
+     *
+     * @param builder          The builder holding only reachable methods and constants.
+     * @param removedMethods   Number of removed methods.
+     * @param removedConstants Number of removed constants.
+     * @param sizeBefore       Linked size in bytes before stripping.
+     * @param sizeAfter        Linked size in bytes after stripping.
+     */
+    public record StripResult(ProgramDefinitionBuilder builder, int removedMethods, int removedConstants,
+                              int sizeBefore, int sizeAfter) {
+        public int sizeReduction() {
+            return sizeBefore - sizeAfter;
         }
     }
 
@@ -112,6 +362,18 @@ public record ProgramDefinition(
             this(parameterNames, localVariableNames, new ArrayList<>());
         }
 
+        /**
+         * @return The number of bytes the body occupies in the method area, excluding the method header.
+         */
+        public int byteSize() {
+            int size = 0;
+            for (var byteResolvable : bytes) {
+                size += ProgramDefinition.byteSize(byteResolvable);
+            }
+
+            return size;
+        }
+
         private boolean needsWide(int number) {
             return number > Byte.MAX_VALUE;
         }
@@ -200,6 +462,20 @@ public record ProgramDefinition(
             return this;
         }
 
+        public MethodBodyBuilder addIINC(String variable, int value) {
+            var varIndex = getVariableIndex(variable);
+            var wide = needsWide(varIndex);
+            if (wide) {
+                bytes.add(new MethodInstruction(Instruction.WIDE));
+            }
+
+            bytes.add(new MethodInstruction(Instruction.IINC));
+            bytes.add(new ParameterData(wide ? IMemory.ParameterType.VAR_NUM_WIDE : IMemory.ParameterType.VAR_NUM, varIndex));
+            bytes.add(new ParameterData(IMemory.ParameterType.CONST, value));
+
+            return this;
+        }
+
         public MethodBodyBuilder addILOAD(String variable) {
             var varIndex = getVariableIndex(variable);
             var wide = needsWide(varIndex);
@@ -220,6 +496,12 @@ public record ProgramDefinition(
             return this;
         }
 
+        public MethodBodyBuilder addJOIN() {
+            bytes.add(new MethodInstruction(Instruction.JOIN));
+
+            return this;
+        }
+
         public MethodBodyBuilder addIOR() {
             bytes.add(new MethodInstruction(Instruction.IOR));
 
@@ -258,6 +540,13 @@ public record ProgramDefinition(
             return this;
         }
 
+        public MethodBodyBuilder addLDC_W(String constantName) {
+            bytes.add(new MethodInstruction(Instruction.LDC_W));
+            bytes.add(new ConstantPoolResolvableVariable(constantName));
+
+            return this;
+        }
+
         public MethodBodyBuilder addNOP() {
             bytes.add(new MethodInstruction(Instruction.NOP));
 
@@ -270,6 +559,13 @@ public record ProgramDefinition(
             return this;
         }
 
+        public MethodBodyBuilder addSPAWN(String methodName) {
+            bytes.add(new MethodInstruction(Instruction.SPAWN));
+            bytes.add(new ConstantPoolResolvableMethod(methodName));
+
+            return this;
+        }
+
         public MethodBodyBuilder addSWAP() {
             bytes.add(new MethodInstruction(Instruction.SWAP));
 
@@ -277,6 +573,15 @@ public record ProgramDefinition(
         }
     }
 
+    private static int byteSize(MethodByteResolvable byteResolvable) {
+        return switch (byteResolvable) {
+            case MethodInstruction ignored -> 1;
+            case ParameterData parameterData -> parameterData.type.size();
+            case ConstantPoolResolvableMethod ignored -> 2;
+            case ConstantPoolResolvableVariable ignored -> 2;
+        };
+    }
+
     public sealed interface MethodByteResolvable permits MethodInstruction, ParameterData, ConstantPoolResolvableMethod, ConstantPoolResolvableVariable {
     }
 
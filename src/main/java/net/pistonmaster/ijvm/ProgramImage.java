@@ -0,0 +1,273 @@
+package net.pistonmaster.ijvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk image of a linked program and the analysis of its methods.
+ * <p>
+ * Layout (big-endian): magic, format version, input hash, section count and a list of
+ * {@code tag, length, payload} sections. Readers skip sections with unknown tags, so derived data
+ * can be added later without breaking older images. {@link #VERSION} changes whenever the linked
+ * layout or a section encoding changes, images of other versions are never loaded.
+ *
+ * @param inputHash  Content hash of the input the program was linked from.
+ * @param definition The linked program.
+ * @param analyses   Analysis of the methods by name, methods without one are analyzed when compiled.
+ */
+public record ProgramImage(byte[] inputHash, ProgramDefinition definition, Map<String, MethodAnalysis> analyses) {
+    public static final int MAGIC = 0x494A564D; // "IJVM"
+    // 2: relative GOTO offsets, WIDE IINC constants behind the index, method analysis section
+    public static final int VERSION = 2;
+
+    private static final int SECTION_CONSTANT_POOL = 1;
+    private static final int SECTION_METHOD_AREA = 2;
+    private static final int SECTION_CONSTANTS = 3;
+    private static final int SECTION_METHODS = 4;
+    private static final int SECTION_ANALYSES = 5;
+
+    /**
+     * Analyzes every method of the program, which is what a warm start saves.
+     */
+    public ProgramImage(byte[] inputHash, ProgramDefinition definition) {
+        this(inputHash, definition, MethodAnalysis.analyzeAll(definition));
+    }
+
+    public void write(Path path) {
+        try (var bytes = new ByteArrayOutputStream();
+             var out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeShort(inputHash.length);
+            out.write(inputHash);
+
+            out.writeInt(5);
+            writeSection(out, SECTION_CONSTANT_POOL, definition.constantPool());
+            writeSection(out, SECTION_METHOD_AREA, definition.methodArea());
+            writeSection(out, SECTION_CONSTANTS, encodeAddresses(definition.constants()));
+            writeSection(out, SECTION_METHODS, encodeAddresses(definition.methods()));
+            writeSection(out, SECTION_ANALYSES, encodeAnalyses(analyses));
+            out.flush();
+
+            Files.write(path, bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads an image and decodes it.
+     * <p>
+     * The file is read into the heap rather than memory mapped. The interpreters index the constant pool and method
+     * area as byte arrays, and {@link LazyProgram} grows the method area while linking, so mapped sections would be
+     * copied anyway. Images are small enough that one read beats keeping a mapping open.
+     *
+     * @param path The image file.
+     * @return The image, or {@code null} if the file is not an image of the current format version.
+     */
+    public static ProgramImage read(Path path) {
+        try {
+            var buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (buffer.remaining() < 10 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+
+            var inputHash = readBytes(buffer, Short.toUnsignedInt(buffer.getShort()));
+
+            byte[] constantPool = null;
+            byte[] methodArea = null;
+            Map<String, Integer> constants = null;
+            Map<String, Integer> methods = null;
+            Map<String, MethodAnalysis> analyses = Map.of();
+
+            var sectionCount = buffer.getInt();
+            for (int i = 0; i < sectionCount; i++) {
+                var tag = buffer.getInt();
+                var length = buffer.getInt();
+                var end = buffer.position() + length;
+
+                switch (tag) {
+                    case SECTION_CONSTANT_POOL -> constantPool = readBytes(buffer, length);
+                    case SECTION_METHOD_AREA -> methodArea = readBytes(buffer, length);
+                    case SECTION_CONSTANTS -> constants = decodeAddresses(buffer);
+                    case SECTION_METHODS -> methods = decodeAddresses(buffer);
+                    case SECTION_ANALYSES -> analyses = decodeAnalyses(buffer);
+                    default -> {
+                        // Unknown section, skipped below
+                    }
+                }
+
+                buffer.position(end);
+            }
+
+            if (constantPool == null || methodArea == null || constants == null || methods == null) {
+                return null;
+            }
+
+            return new ProgramImage(inputHash, new ProgramDefinition(constantPool, methodArea, constants, methods), analyses);
+        } catch (RuntimeException e) {
+            // Truncated or otherwise corrupt image
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public boolean matches(byte[] hash) {
+        return Arrays.equals(inputHash, hash);
+    }
+
+    private static void writeSection(DataOutputStream out, int tag, byte[] payload) throws IOException {
+        out.writeInt(tag);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    private static byte[] encodeAddresses(Map<String, Integer> addresses) throws IOException {
+        try (var bytes = new ByteArrayOutputStream();
+             var out = new DataOutputStream(bytes)) {
+            out.writeInt(addresses.size());
+            for (var entry : addresses.entrySet()) {
+                writeName(out, entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+
+            out.flush();
+            return bytes.toByteArray();
+        }
+    }
+
+    private static byte[] encodeAnalyses(Map<String, MethodAnalysis> analyses) throws IOException {
+        try (var bytes = new ByteArrayOutputStream();
+             var out = new DataOutputStream(bytes)) {
+            out.writeInt(analyses.size());
+            for (var entry : analyses.entrySet()) {
+                var analysis = entry.getValue();
+                writeName(out, entry.getKey());
+                out.writeInt(analysis.codeEnd());
+
+                out.writeInt(analysis.instructions().size());
+                for (var instruction : analysis.instructions()) {
+                    out.writeInt(instruction.address());
+                    out.writeByte(instruction.instruction().getOpcode());
+                    out.writeBoolean(instruction.wide());
+                    out.writeByte(instruction.length());
+                    out.writeInt(instruction.operand());
+                    out.writeInt(instruction.increment());
+                }
+
+                out.writeInt(analysis.loops().size());
+                for (var loop : analysis.loops()) {
+                    out.writeInt(loop.header());
+                    out.writeInt(loop.exit());
+                    out.writeInt(loop.counter());
+                    out.writeInt(loop.step());
+                    writeValue(out, loop.limit());
+                    out.writeBoolean(loop.testFirst());
+                    out.writeInt(loop.accumulations().size());
+                    for (var accumulation : loop.accumulations()) {
+                        out.writeInt(accumulation.variable());
+                        writeValue(out, accumulation.operand());
+                        out.writeBoolean(accumulation.subtract());
+                    }
+                }
+            }
+
+            out.flush();
+            return bytes.toByteArray();
+        }
+    }
+
+    private static void writeName(DataOutputStream out, String name) throws IOException {
+        var bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Name is longer than 65535 bytes: " + name.substring(0, 32) + "...");
+        }
+
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeValue(DataOutputStream out, LoopIdiom.Value value) throws IOException {
+        out.writeBoolean(value.variable());
+        out.writeInt(value.value());
+    }
+
+    private static Map<String, Integer> decodeAddresses(ByteBuffer buffer) {
+        var count = buffer.getInt();
+        Map<String, Integer> addresses = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            addresses.put(readName(buffer), buffer.getInt());
+        }
+
+        return addresses;
+    }
+
+    private static Map<String, MethodAnalysis> decodeAnalyses(ByteBuffer buffer) {
+        var count = buffer.getInt();
+        Map<String, MethodAnalysis> analyses = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            var name = readName(buffer);
+            var codeEnd = buffer.getInt();
+
+            var instructionCount = buffer.getInt();
+            List<BytecodeDecoder.DecodedInstruction> instructions = new ArrayList<>(instructionCount);
+            for (int j = 0; j < instructionCount; j++) {
+                var address = buffer.getInt();
+                var instruction = Instruction.fromOpcode(buffer.get());
+                var wide = buffer.get() != 0;
+                var length = Byte.toUnsignedInt(buffer.get());
+                instructions.add(new BytecodeDecoder.DecodedInstruction(address, instruction, wide, length, buffer.getInt(), buffer.getInt()));
+            }
+
+            var loopCount = buffer.getInt();
+            List<LoopIdiom> loops = new ArrayList<>(loopCount);
+            for (int j = 0; j < loopCount; j++) {
+                var header = buffer.getInt();
+                var exit = buffer.getInt();
+                var counter = buffer.getInt();
+                var step = buffer.getInt();
+                var limit = readValue(buffer);
+                var testFirst = buffer.get() != 0;
+
+                var accumulationCount = buffer.getInt();
+                List<LoopIdiom.Accumulation> accumulations = new ArrayList<>(accumulationCount);
+                for (int k = 0; k < accumulationCount; k++) {
+                    accumulations.add(new LoopIdiom.Accumulation(buffer.getInt(), readValue(buffer), buffer.get() != 0));
+                }
+
+                loops.add(new LoopIdiom(header, exit, counter, step, limit, testFirst, List.copyOf(accumulations)));
+            }
+
+            analyses.put(name, new MethodAnalysis(codeEnd, List.copyOf(instructions), List.copyOf(loops)));
+        }
+
+        return analyses;
+    }
+
+    private static String readName(ByteBuffer buffer) {
+        return new String(readBytes(buffer, Short.toUnsignedInt(buffer.getShort())), StandardCharsets.UTF_8);
+    }
+
+    private static LoopIdiom.Value readValue(ByteBuffer buffer) {
+        var variable = buffer.get() != 0;
+        return new LoopIdiom.Value(variable, buffer.getInt());
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer, int length) {
+        var bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
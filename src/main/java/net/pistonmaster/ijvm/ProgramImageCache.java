@@ -0,0 +1,81 @@
+package net.pistonmaster.ijvm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HexFormat;
+import java.util.function.Supplier;
+
+/**
+ * Directory of {@link ProgramImage} files keyed by the content hash of their input and the image format version.
+ * A warm start maps the stored image instead of linking and analyzing the program again.
+ */
+public class ProgramImageCache {
+    private static final String EXTENSION = ".ijvmimg";
+    private final Path directory;
+
+    public ProgramImageCache(Path directory) {
+        this.directory = directory;
+    }
+
+    public ProgramDefinition load(ProgramDefinition.ProgramDefinitionBuilder builder) {
+        return loadImage(builder).definition();
+    }
+
+    public ProgramDefinition load(byte[] inputHash, Supplier<ProgramDefinition> linker) {
+        return loadImage(inputHash, linker).definition();
+    }
+
+    public ProgramImage loadImage(ProgramDefinition.ProgramDefinitionBuilder builder) {
+        return loadImage(builder.contentHash(), builder::link);
+    }
+
+    /**
+     * Loads the image stored for the input hash, or links and analyzes the program and stores it.
+     *
+     * @param inputHash Content hash of the program input.
+     * @param linker    Creates the program on a cache miss.
+     * @return The cached or freshly created image.
+     */
+    public ProgramImage loadImage(byte[] inputHash, Supplier<ProgramDefinition> linker) {
+        var path = imagePath(inputHash);
+        if (Files.isRegularFile(path)) {
+            var image = ProgramImage.read(path);
+            if (image != null && image.matches(inputHash)) {
+                return image;
+            }
+        }
+
+        var image = new ProgramImage(inputHash, linker.get());
+        store(path, image);
+        return image;
+    }
+
+    public boolean contains(byte[] inputHash) {
+        return Files.isRegularFile(imagePath(inputHash));
+    }
+
+    public Path imagePath(byte[] inputHash) {
+        // Images of other format versions get other names, so they are never even opened
+        return directory.resolve(HexFormat.of().formatHex(inputHash) + ".v" + ProgramImage.VERSION + EXTENSION);
+    }
+
+    private void store(Path path, ProgramImage image) {
+        try {
+            Files.createDirectories(directory);
+
+            // Write to a temporary file first so concurrent workers never read a half written image
+            var temporary = Files.createTempFile(directory, "image", EXTENSION + ".tmp");
+            try {
+                image.write(temporary);
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
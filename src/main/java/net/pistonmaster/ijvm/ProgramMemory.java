@@ -1,25 +1,43 @@
 package net.pistonmaster.ijvm;
 
+import java.util.Arrays;
+
 public class ProgramMemory implements IMemory {
     private final boolean canGrow;
     public byte[] storage;
+    // Bytes in use, storage may be longer after growing
+    private int size;
 
     public ProgramMemory(int baseSize) {
         this.canGrow = true;
         this.storage = new byte[baseSize];
+        this.size = baseSize;
     }
 
     public ProgramMemory(byte[] storage) {
         this.canGrow = false;
         this.storage = storage;
+        this.size = storage.length;
     }
 
     public void ensureCapacity(int capacity) {
-        if (canGrow && storage.length < capacity) {
-            byte[] newStorage = new byte[capacity];
-            System.arraycopy(storage, 0, newStorage, 0, storage.length);
-            storage = newStorage;
+        if (!canGrow || size >= capacity) {
+            return;
+        }
+
+        // Grow geometrically so writing byte by byte past the end stays linear
+        if (storage.length < capacity) {
+            storage = Arrays.copyOf(storage, Math.max(capacity, storage.length * 2));
         }
+
+        size = capacity;
+    }
+
+    /**
+     * @return The number of bytes in use, which {@link #copyStorage()} returns.
+     */
+    public int size() {
+        return size;
     }
 
     @Override
@@ -35,9 +53,6 @@ public class ProgramMemory implements IMemory {
     }
 
     public byte[] copyStorage() {
-        byte[] copy = new byte[storage.length];
-        System.arraycopy(storage, 0, copy, 0, storage.length);
-
-        return copy;
+        return Arrays.copyOf(storage, size);
     }
 }
@@ -0,0 +1,174 @@
+package net.pistonmaster.ijvm;
+
+import java.util.Arrays;
+
+/**
+ * Stack memory made of fixed size chunks that are allocated on first write.
+ * <p>
+ * Growing the stack never copies existing contents, so deep recursion costs O(depth).
+ * Reads of addresses that were never written return zero without allocating.
+ * <p>
+ * Returning from deep calls releases chunks above the stack pointer, but the first {@code retainedSize} bytes are
+ * kept, so programs that repeatedly call to a depth below that size stop allocating once they ran once.
+ */
+public class StackMemory implements IMemory {
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+    public static final int DEFAULT_MAX_WORDS = 16 * 1024 * 1024;
+    public static final int DEFAULT_RETAINED_SIZE = 1024 * 1024;
+    private final int chunkShift;
+    private final int chunkMask;
+    private final int maxWords;
+    private final int maxSize;
+    // Chunks below this index are never released
+    private final int retainedChunks;
+    private byte[][] chunks = new byte[16][];
+    // Index of the highest allocated chunk + 1
+    private int chunkCount;
+
+    public StackMemory() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_WORDS, DEFAULT_RETAINED_SIZE);
+    }
+
+    /**
+     * @param chunkSize     Size of a chunk in bytes, a power of two of at least one word.
+     * @param maxWords      Maximum stack size in words, writing above it throws {@link StackOverflowException}.
+     * @param releaseChunks Whether {@link #release(int)} frees chunks above the stack pointer, retaining none.
+     */
+    public StackMemory(int chunkSize, int maxWords, boolean releaseChunks) {
+        this(chunkSize, maxWords, releaseChunks ? 0 : Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param chunkSize    Size of a chunk in bytes, a power of two of at least one word.
+     * @param maxWords     Maximum stack size in words, writing above it throws {@link StackOverflowException}.
+     * @param retainedSize Bytes at the bottom of the stack whose chunks {@link #release(int)} never frees.
+     */
+    public StackMemory(int chunkSize, int maxWords, int retainedSize) {
+        if (chunkSize < MemoryPointer.WORD_SIZE || Integer.bitCount(chunkSize) != 1) {
+            throw new IllegalArgumentException("Chunk size must be a power of two of at least one word");
+        }
+
+        if (maxWords <= 0 || maxWords > Integer.MAX_VALUE / MemoryPointer.WORD_SIZE) {
+            throw new IllegalArgumentException("Maximum stack size must be between 1 and " + Integer.MAX_VALUE / MemoryPointer.WORD_SIZE + " words");
+        }
+
+        if (retainedSize < 0) {
+            throw new IllegalArgumentException("Retained size must not be negative");
+        }
+
+        this.chunkShift = Integer.numberOfTrailingZeros(chunkSize);
+        this.chunkMask = chunkSize - 1;
+        this.maxWords = maxWords;
+        this.maxSize = maxWords * MemoryPointer.WORD_SIZE;
+        this.retainedChunks = (int) (((long) retainedSize + chunkMask) >>> chunkShift);
+    }
+
+    @Override
+    public void writeByte(int address, byte value) {
+        writableChunk(address)[address & chunkMask] = value;
+    }
+
+    @Override
+    public byte readByte(int address) {
+        var chunk = readableChunk(address);
+        return chunk == null ? 0 : chunk[address & chunkMask];
+    }
+
+    @Override
+    public int readBigEndianInt(int address) {
+        if ((address & (MemoryPointer.WORD_SIZE - 1)) != 0) {
+            return IMemory.super.readBigEndianInt(address);
+        }
+
+        // Chunks hold whole words, so aligned words never cross a chunk boundary
+        var chunk = readableChunk(address);
+        if (chunk == null) {
+            return 0;
+        }
+
+        var offset = address & chunkMask;
+        return (chunk[offset] << 24)
+                | ((chunk[offset + 1] & 0xFF) << 16)
+                | ((chunk[offset + 2] & 0xFF) << 8)
+                | (chunk[offset + 3] & 0xFF);
+    }
+
+    @Override
+    public void writeBigEndianInt(int address, int value) {
+        if ((address & (MemoryPointer.WORD_SIZE - 1)) != 0) {
+            IMemory.super.writeBigEndianInt(address, value);
+            return;
+        }
+
+        var chunk = writableChunk(address);
+        var offset = address & chunkMask;
+        chunk[offset] = (byte) (value >> 24);
+        chunk[offset + 1] = (byte) (value >> 16);
+        chunk[offset + 2] = (byte) (value >> 8);
+        chunk[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Frees chunks above the one holding the stack pointer and above the retained size, keeping one spare chunk to
+     * avoid thrashing when a call sequence repeatedly crosses a chunk boundary.
+     *
+     * @param stackPointer The current stack pointer.
+     */
+    public void release(int stackPointer) {
+        var keep = Math.max((stackPointer >>> chunkShift) + 2, retainedChunks);
+        while (chunkCount > keep) {
+            chunks[--chunkCount] = null;
+        }
+    }
+
+    /**
+     * @return The number of chunks currently backing the stack, including unallocated gaps below the highest one.
+     */
+    public int chunkCount() {
+        return chunkCount;
+    }
+
+    public int maxWords() {
+        return maxWords;
+    }
+
+    private byte[] readableChunk(int address) {
+        checkAddress(address);
+        var index = address >>> chunkShift;
+        return index < chunkCount ? chunks[index] : null;
+    }
+
+    private byte[] writableChunk(int address) {
+        checkAddress(address);
+        var index = address >>> chunkShift;
+        if (index < chunkCount) {
+            var chunk = chunks[index];
+            if (chunk != null) {
+                return chunk;
+            }
+        }
+
+        return allocateChunk(index);
+    }
+
+    private byte[] allocateChunk(int index) {
+        if (index >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(chunks.length * 2, index + 1));
+        }
+
+        var chunk = new byte[chunkMask + 1];
+        chunks[index] = chunk;
+        chunkCount = Math.max(chunkCount, index + 1);
+        return chunk;
+    }
+
+    private void checkAddress(int address) {
+        if (address < 0) {
+            throw new IndexOutOfBoundsException("Negative stack address: " + address);
+        }
+
+        if (address >= maxSize) {
+            throw new StackOverflowException(address, maxWords);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package net.pistonmaster.ijvm;
+
+/**
+ * Thrown when an IJVM program grows its stack past the configured maximum.
+ */
+public class StackOverflowException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public StackOverflowException(int address, int maxWords) {
+        super("IJVM stack overflow: address " + address + " exceeds the maximum stack size of " + maxWords + " words");
+    }
+}
@@ -0,0 +1,217 @@
+package net.pistonmaster.ijvm;
+
+/**
+ * Processor whose {@link #run()} keeps the top two operand stack values in local variables of the run loop.
+ * <p>
+ * Arithmetic, branches and loads work on the cached values without touching {@link #stack}. The cache is spilled
+ * before INVOKEVIRTUAL, IRETURN, BREAKPOINT and unknown opcodes, which are executed by {@link Processor#tick()}, and
+ * when {@link #run()} returns. Single stepping with {@link #tick()} behaves like the plain processor.
+ * <p>
+ * A cached word is written to its slot when it is popped, so the stack memory ends up the same as with the plain
+ * processor, including the dead words above the stack pointer.
+ */
+public class TosCachingProcessor extends Processor {
+    public TosCachingProcessor(ProgramDefinition definition, String initialMethod) {
+        super(definition, initialMethod);
+    }
+
+    public TosCachingProcessor(ProgramDefinition definition, String initialMethod, StackMemory stack) {
+        super(definition, initialMethod, stack);
+    }
+
+    public TosCachingProcessor(LazyProgram program, String initialMethod) {
+        super(program, initialMethod);
+    }
+
+    public TosCachingProcessor(ProgramMemory constantPool, ProgramMemory methodArea, int initialMethodPointer, StackMemory stack) {
+        super(constantPool, methodArea, initialMethodPointer, stack);
+    }
+
+    @Override
+    public void run() {
+        var code = methodArea.storage;
+        var pc = methodAreaPointer.currentPointer();
+        var cpp = constantPoolPointer.currentPointer();
+        var lv = localVariablePointer.currentPointer();
+        // Address of the topmost word in memory, the cached words logically sit above it
+        var sp = stackPointer.currentPointer();
+        // Number of cached words, top is the top of stack and second the word below it
+        var cached = 0;
+        var top = 0;
+        var second = 0;
+        var wide = false;
+
+        while (true) {
+            var instruction = Instruction.fromOpcode(code[pc]);
+            switch (instruction) {
+                case BIPUSH, ILOAD, LDC_W -> {
+                    int value;
+                    if (instruction == Instruction.BIPUSH) {
+                        value = code[pc + 1];
+                        pc += 2;
+                    } else if (instruction == Instruction.ILOAD) {
+                        var index = wide ? readUnsignedShort(code, pc + 1) : code[pc + 1] & 0xFF;
+                        value = stack.readBigEndianInt(lv + index * MemoryPointer.WORD_SIZE);
+                        pc += wide ? 3 : 2;
+                    } else {
+                        value = constantPool.readBigEndianInt(cpp + readUnsignedShort(code, pc + 1) * MemoryPointer.WORD_SIZE);
+                        pc += 3;
+                    }
+
+                    // Push, the cache is full so the second word goes to memory
+                    if (cached == 2) {
+                        sp += MemoryPointer.WORD_SIZE;
+                        stack.writeBigEndianInt(sp, second);
+                    } else {
+                        cached++;
+                    }
+
+                    second = top;
+                    top = value;
+                }
+                case DUP -> {
+                    if (cached == 0) {
+                        top = stack.readBigEndianInt(sp);
+                        sp -= MemoryPointer.WORD_SIZE;
+                        cached = 1;
+                    }
+
+                    if (cached == 2) {
+                        sp += MemoryPointer.WORD_SIZE;
+                        stack.writeBigEndianInt(sp, second);
+                    } else {
+                        cached++;
+                    }
+
+                    second = top;
+                    pc++;
+                }
+                case IADD, IAND, IOR, ISUB, SWAP -> {
+                    // Load the missing operands
+                    if (cached == 0) {
+                        top = stack.readBigEndianInt(sp);
+                        second = stack.readBigEndianInt(sp - MemoryPointer.WORD_SIZE);
+                        sp -= 2 * MemoryPointer.WORD_SIZE;
+                    } else if (cached == 1) {
+                        second = stack.readBigEndianInt(sp);
+                        sp -= MemoryPointer.WORD_SIZE;
+                    }
+
+                    if (instruction == Instruction.SWAP) {
+                        var swapped = top;
+                        top = second;
+                        second = swapped;
+                        cached = 2;
+                    } else {
+                        // The right operand stays behind in its slot, as with the plain processor
+                        stack.writeBigEndianInt(sp + 2 * MemoryPointer.WORD_SIZE, top);
+                        top = switch (instruction) {
+                            case IADD -> second + top;
+                            case IAND -> second & top;
+                            case IOR -> second | top;
+                            default -> second - top;
+                        };
+                        cached = 1;
+                    }
+
+                    pc++;
+                }
+                case IFEQ, IFLT, ISTORE, POP -> {
+                    int value;
+                    if (cached == 0) {
+                        value = stack.readBigEndianInt(sp);
+                        sp -= MemoryPointer.WORD_SIZE;
+                    } else {
+                        value = top;
+                        stack.writeBigEndianInt(sp + cached * MemoryPointer.WORD_SIZE, value);
+                        top = second;
+                        cached--;
+                    }
+
+                    if (instruction == Instruction.ISTORE) {
+                        var index = wide ? readUnsignedShort(code, pc + 1) : code[pc + 1] & 0xFF;
+                        stack.writeBigEndianInt(lv + index * MemoryPointer.WORD_SIZE, value);
+                        pc += wide ? 3 : 2;
+                    } else if (instruction == Instruction.POP) {
+                        pc++;
+                    } else if (instruction == Instruction.IFEQ ? value == 0 : value < 0) {
+                        pc += readShort(code, pc + 1);
+                    } else {
+                        pc += 3;
+                    }
+                }
+                case IF_ICMPEQ -> {
+                    if (cached == 0) {
+                        top = stack.readBigEndianInt(sp);
+                        second = stack.readBigEndianInt(sp - MemoryPointer.WORD_SIZE);
+                        sp -= 2 * MemoryPointer.WORD_SIZE;
+                    } else if (cached == 1) {
+                        second = stack.readBigEndianInt(sp);
+                        sp -= MemoryPointer.WORD_SIZE;
+                    }
+
+                    stack.writeBigEndianInt(sp + MemoryPointer.WORD_SIZE, second);
+                    stack.writeBigEndianInt(sp + 2 * MemoryPointer.WORD_SIZE, top);
+                    cached = 0;
+                    pc += top == second ? readShort(code, pc + 1) : 3;
+                }
+                case GOTO -> pc += readShort(code, pc + 1);
+                case IINC -> {
+                    var index = wide ? readUnsignedShort(code, pc + 1) : code[pc + 1] & 0xFF;
+                    var address = lv + index * MemoryPointer.WORD_SIZE;
+                    stack.writeBigEndianInt(address, stack.readBigEndianInt(address) + code[pc + (wide ? 3 : 2)]);
+                    pc += wide ? 4 : 3;
+                }
+                case NOP -> pc++;
+                case WIDE -> {
+                    pc++;
+                    wide = true;
+                    continue;
+                }
+                default -> {
+                    // Calls, returns and traps see the full stack in memory
+                    sp = spill(sp, cached, top, second);
+                    cached = 0;
+                    stackPointer.setPointer(sp);
+                    methodAreaPointer.setPointer(pc);
+
+                    var halted = tick(wide);
+
+                    sp = stackPointer.currentPointer();
+                    pc = methodAreaPointer.currentPointer();
+                    lv = localVariablePointer.currentPointer();
+                    cpp = constantPoolPointer.currentPointer();
+                    // Lazy linking may have grown the method area
+                    code = methodArea.storage;
+                    if (halted) {
+                        return;
+                    }
+                }
+            }
+
+            wide = false;
+        }
+    }
+
+    private int spill(int sp, int cached, int top, int second) {
+        if (cached == 2) {
+            sp += MemoryPointer.WORD_SIZE;
+            stack.writeBigEndianInt(sp, second);
+        }
+
+        if (cached >= 1) {
+            sp += MemoryPointer.WORD_SIZE;
+            stack.writeBigEndianInt(sp, top);
+        }
+
+        return sp;
+    }
+
+    private static short readShort(byte[] code, int address) {
+        return (short) (((code[address] & 0xFF) << 8) | (code[address + 1] & 0xFF));
+    }
+
+    private static int readUnsignedShort(byte[] code, int address) {
+        return ((code[address] & 0xFF) << 8) | (code[address + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,12 @@
+package net.pistonmaster.ijvm;
+
+@FunctionalInterface
+public interface TrapHandler {
+    /**
+     * Handles a BREAKPOINT opcode at the current program counter.
+     *
+     * @param processor The processor that hit the trap.
+     * @return Whether {@link Processor#run()} should stop.
+     */
+    boolean onTrap(Processor processor);
+}
@@ -0,0 +1,408 @@
+package net.pistonmaster.ijvm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates large, valid programs for scaling benchmarks.
+ * <p>
+ * Generation is deterministic for a given seed and settings. Every generated method takes one parameter,
+ * folds it through calls, nested counting loops and filler arithmetic into an accumulator and returns it.
+ * Each emitted statement is also evaluated in Java, which yields the expected result of the entry method.
+ */
+public class WorkloadGenerator {
+    public static final String ENTRY_METHOD = "main";
+    private static final String TRIP_CONSTANT = "trip";
+    private static final String PARAMETER = "p";
+    private static final String ACCUMULATOR = "acc";
+    private static final Instruction[] FILLER_OPERATIONS = {Instruction.IADD, Instruction.ISUB, Instruction.IAND, Instruction.IOR};
+
+    private final long seed;
+    private int methodCount = 16;
+    private int methodSize = 64;
+    private int callDepth = 3;
+    private int fanOut = 2;
+    private int loopNesting = 1;
+    private int loopTripCount = 10;
+    private int localVariables = 4;
+    private int constantPoolSize = 16;
+
+    public WorkloadGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param methodCount Number of generated methods, not counting the entry method. Must be at least the call depth.
+     */
+    public WorkloadGenerator methodCount(int methodCount) {
+        this.methodCount = requireAtLeast(methodCount, 1, "Method count");
+        return this;
+    }
+
+    /**
+     * @param methodSize Minimum body size of every generated method in bytes, reached by padding with filler arithmetic.
+     */
+    public WorkloadGenerator methodSize(int methodSize) {
+        this.methodSize = requireAtLeast(methodSize, 0, "Method size");
+        return this;
+    }
+
+    /**
+     * @param callDepth Number of call graph levels below the entry method. Must not exceed the method count.
+     */
+    public WorkloadGenerator callDepth(int callDepth) {
+        this.callDepth = requireAtLeast(callDepth, 1, "Call depth");
+        return this;
+    }
+
+    /**
+     * @param fanOut Number of calls every method makes into the next call graph level.
+     */
+    public WorkloadGenerator fanOut(int fanOut) {
+        this.fanOut = requireAtLeast(fanOut, 0, "Fan out");
+        return this;
+    }
+
+    public WorkloadGenerator loopNesting(int loopNesting) {
+        this.loopNesting = requireAtLeast(loopNesting, 0, "Loop nesting");
+        return this;
+    }
+
+    /**
+     * @param loopTripCount Iterations of every loop level, the innermost body runs {@code tripCount ^ nesting} times.
+     */
+    public WorkloadGenerator loopTripCount(int loopTripCount) {
+        this.loopTripCount = requireAtLeast(loopTripCount, 1, "Loop trip count");
+        return this;
+    }
+
+    /**
+     * @param localVariables Number of filler locals per method. They are declared before the accumulator and the
+     *                       loop counters, so more than 125 of them forces {@code WIDE} on the hot variables.
+     */
+    public WorkloadGenerator localVariables(int localVariables) {
+        this.localVariables = requireAtLeast(localVariables, 0, "Local variables");
+        return this;
+    }
+
+    /**
+     * @param constantPoolSize Number of named constants besides the loop trip count.
+     */
+    public WorkloadGenerator constantPoolSize(int constantPoolSize) {
+        this.constantPoolSize = requireAtLeast(constantPoolSize, 1, "Constant pool size");
+        return this;
+    }
+
+    public Workload generate() {
+        if (methodCount < callDepth) {
+            throw new IllegalArgumentException("Method count " + methodCount + " cannot fill call depth " + callDepth);
+        }
+
+        var random = new Random(seed);
+
+        var constantValues = new int[constantPoolSize];
+        for (int i = 0; i < constantPoolSize; i++) {
+            constantValues[i] = random.nextInt(2001) - 1000;
+        }
+
+        // Spread methods over the call graph levels, every level gets at least one method
+        List<List<GeneratedMethod>> levels = new ArrayList<>();
+        for (int level = 0; level < callDepth; level++) {
+            levels.add(new ArrayList<>());
+        }
+
+        List<GeneratedMethod> methods = new ArrayList<>();
+        for (int i = 0; i < methodCount; i++) {
+            var method = new GeneratedMethod("method" + i, List.of(PARAMETER), localVariableNames());
+            levels.get(i % callDepth).add(method);
+            methods.add(method);
+        }
+
+        for (int level = 0; level < callDepth; level++) {
+            for (var method : levels.get(level)) {
+                method.add(new Accumulate(Instruction.IADD, new Load(PARAMETER)));
+                generateBody(random, method, level + 1 < callDepth ? levels.get(level + 1) : List.of(), constantValues);
+            }
+        }
+
+        var entry = new GeneratedMethod(ENTRY_METHOD, List.of(), List.of(ACCUMULATOR));
+        for (var root : levels.get(0)) {
+            entry.add(new Call(root));
+        }
+
+        var builder = new ProgramDefinition.ProgramDefinitionBuilder();
+
+        // The entry method goes first so it sits at method area address 0
+        builder.addMethod(ENTRY_METHOD, entry.finish());
+        for (var method : methods) {
+            builder.addMethod(method.name, method.finish());
+        }
+
+        for (int i = 0; i < constantPoolSize; i++) {
+            builder.putConstant(constantName(i), constantValues[i]);
+        }
+
+        builder.putConstant(TRIP_CONSTANT, loopTripCount);
+
+        return new Workload(builder, ENTRY_METHOD, entry.evaluate(0));
+    }
+
+    private void generateBody(Random random, GeneratedMethod method, List<GeneratedMethod> callees, int[] constantValues) {
+        for (int i = 0; i < localVariables; i++) {
+            method.add(new StoreLocal(fillerName(i), i % 64));
+        }
+
+        if (!callees.isEmpty()) {
+            for (int i = 0; i < fanOut; i++) {
+                method.add(new Call(callees.get(random.nextInt(callees.size()))));
+            }
+        }
+
+        if (loopNesting > 0) {
+            List<Statement> body = new ArrayList<>();
+            body.add(randomAccumulate(random, Instruction.IADD, constantValues));
+            if (localVariables > 0) {
+                body.add(new Accumulate(Instruction.ISUB, new Load(fillerName(random.nextInt(localVariables)))));
+            }
+
+            for (int depth = loopNesting - 1; depth >= 0; depth--) {
+                body = List.of(new Loop(counterName(depth), loopTripCount, body));
+            }
+
+            method.add(body.get(0));
+        }
+
+        // Pad with filler arithmetic until the method reaches the requested size
+        while (method.body.byteSize() < methodSize) {
+            method.add(randomAccumulate(random, FILLER_OPERATIONS[random.nextInt(FILLER_OPERATIONS.length)], constantValues));
+        }
+    }
+
+    private Accumulate randomAccumulate(Random random, Instruction operation, int[] constantValues) {
+        var index = random.nextInt(constantPoolSize);
+        return new Accumulate(operation, new Constant(constantName(index), constantValues[index]));
+    }
+
+    private List<String> localVariableNames() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < localVariables; i++) {
+            names.add(fillerName(i));
+        }
+
+        names.add(ACCUMULATOR);
+        for (int depth = 0; depth < loopNesting; depth++) {
+            names.add(counterName(depth));
+        }
+
+        return names;
+    }
+
+    private static int requireAtLeast(int value, int minimum, String name) {
+        if (value < minimum) {
+            throw new IllegalArgumentException(name + " must be at least " + minimum);
+        }
+
+        return value;
+    }
+
+    private static String constantName(int index) {
+        return "k" + index;
+    }
+
+    private static String fillerName(int index) {
+        return "v" + index;
+    }
+
+    private static String counterName(int depth) {
+        return "i" + depth;
+    }
+
+    /**
+     * A generated program and the value its entry method returns.
+     *
+     * @param builder        The unlinked program.
+     * @param entryMethod    The method to start execution at.
+     * @param expectedResult The value the entry method returns.
+     */
+    public record Workload(ProgramDefinition.ProgramDefinitionBuilder builder, String entryMethod, int expectedResult) {
+    }
+
+    private static final class GeneratedMethod {
+        private final String name;
+        private final ProgramDefinition.MethodBodyBuilder body;
+        private final List<Statement> statements = new ArrayList<>();
+
+        private GeneratedMethod(String name, List<String> parameterNames, List<String> localVariableNames) {
+            this.name = name;
+            this.body = new ProgramDefinition.MethodBodyBuilder(parameterNames, localVariableNames);
+
+            // acc = 0
+            body.addBIPUSH(0);
+            body.addISTORE(ACCUMULATOR);
+        }
+
+        private void add(Statement statement) {
+            statements.add(statement);
+            statement.emit(body);
+        }
+
+        private ProgramDefinition.MethodBodyBuilder finish() {
+            body.addILOAD(ACCUMULATOR);
+            body.addIRETURN();
+            return body;
+        }
+
+        private int evaluate(int parameter) {
+            Map<String, Integer> frame = new HashMap<>();
+            frame.put(PARAMETER, parameter);
+            frame.put(ACCUMULATOR, 0);
+            for (var statement : statements) {
+                statement.evaluate(frame);
+            }
+
+            return frame.get(ACCUMULATOR);
+        }
+    }
+
+    private sealed interface Statement permits StoreLocal, Accumulate, Call, Loop {
+        void emit(ProgramDefinition.MethodBodyBuilder body);
+
+        void evaluate(Map<String, Integer> frame);
+    }
+
+    private sealed interface Operand permits Load, Constant {
+        void emit(ProgramDefinition.MethodBodyBuilder body);
+
+        int evaluate(Map<String, Integer> frame);
+    }
+
+    private record Load(String variable) implements Operand {
+        @Override
+        public void emit(ProgramDefinition.MethodBodyBuilder body) {
+            body.addILOAD(variable);
+        }
+
+        @Override
+        public int evaluate(Map<String, Integer> frame) {
+            return frame.get(variable);
+        }
+    }
+
+    private record Constant(String constantName, int value) implements Operand {
+        @Override
+        public void emit(ProgramDefinition.MethodBodyBuilder body) {
+            body.addLDC_W(constantName);
+        }
+
+        @Override
+        public int evaluate(Map<String, Integer> frame) {
+            return value;
+        }
+    }
+
+    private record StoreLocal(String variable, int value) implements Statement {
+        @Override
+        public void emit(ProgramDefinition.MethodBodyBuilder body) {
+            body.addBIPUSH(value);
+            body.addISTORE(variable);
+        }
+
+        @Override
+        public void evaluate(Map<String, Integer> frame) {
+            frame.put(variable, value);
+        }
+    }
+
+    /**
+     * acc = acc (operation) operand
+     */
+    private record Accumulate(Instruction operation, Operand operand) implements Statement {
+        @Override
+        public void emit(ProgramDefinition.MethodBodyBuilder body) {
+            body.addILOAD(ACCUMULATOR);
+            operand.emit(body);
+            switch (operation) {
+                case IADD -> body.addIADD();
+                case ISUB -> body.addISUB();
+                case IAND -> body.addIAND();
+                case IOR -> body.addIOR();
+                default -> throw new IllegalArgumentException("Not an arithmetic instruction: " + operation);
+            }
+
+            body.addISTORE(ACCUMULATOR);
+        }
+
+        @Override
+        public void evaluate(Map<String, Integer> frame) {
+            int left = frame.get(ACCUMULATOR);
+            int right = operand.evaluate(frame);
+            frame.put(ACCUMULATOR, switch (operation) {
+                case IADD -> left + right;
+                case ISUB -> left - right;
+                case IAND -> left & right;
+                case IOR -> left | right;
+                default -> throw new IllegalArgumentException("Not an arithmetic instruction: " + operation);
+            });
+        }
+    }
+
+    /**
+     * acc = callee(acc) + acc
+     */
+    private record Call(GeneratedMethod callee) implements Statement {
+        @Override
+        public void emit(ProgramDefinition.MethodBodyBuilder body) {
+            body.addBIPUSH(0); // OBJREF
+            body.addILOAD(ACCUMULATOR);
+            body.addINVOKEVIRTUAL(callee.name);
+            body.addILOAD(ACCUMULATOR);
+            body.addIADD();
+            body.addISTORE(ACCUMULATOR);
+        }
+
+        @Override
+        public void evaluate(Map<String, Integer> frame) {
+            int accumulator = frame.get(ACCUMULATOR);
+            frame.put(ACCUMULATOR, callee.evaluate(accumulator) + accumulator);
+        }
+    }
+
+    /**
+     * counter = 0; do { body; counter++; } while (counter != tripCount)
+     */
+    private record Loop(String counter, int tripCount, List<Statement> body) implements Statement {
+        @Override
+        public void emit(ProgramDefinition.MethodBodyBuilder method) {
+            method.addBIPUSH(0);
+            method.addISTORE(counter);
+
+            var loopStart = method.byteSize();
+            for (var statement : body) {
+                statement.emit(method);
+            }
+
+            method.addIINC(counter, 1);
+            method.addILOAD(counter);
+            method.addLDC_W(TRIP_CONSTANT);
+
+            // Skip the IF_ICMPEQ and the GOTO behind it
+            method.addIF_ICMPEQ(6);
+            method.addGOTO(loopStart - method.byteSize());
+        }
+
+        @Override
+        public void evaluate(Map<String, Integer> frame) {
+            frame.put(counter, 0);
+            do {
+                for (var statement : body) {
+                    statement.evaluate(frame);
+                }
+
+                frame.put(counter, frame.get(counter) + 1);
+            } while (frame.get(counter) != tripCount);
+        }
+    }
+}
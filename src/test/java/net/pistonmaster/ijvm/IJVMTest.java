@@ -2,8 +2,15 @@ package net.pistonmaster.ijvm;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public class IJVMTest {
     @Test
@@ -132,4 +139,893 @@ public class IJVMTest {
 
         Assertions.assertEquals(10, processor.stack.readBigEndianInt(0x00000000));
     }
+
+    @Test
+    public void programImageCacheTest(@TempDir Path directory) {
+        var builder = new ProgramDefinition.ProgramDefinitionBuilder()
+                .putConstant("ten", 10)
+                .addMethod("main", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of())
+                        .addDUP() // OBJREF
+                        .addBIPUSH(5)
+                        .addINVOKEVIRTUAL("test")
+                        .addIRETURN()
+                )
+                .addMethod("test", new ProgramDefinition.MethodBodyBuilder(List.of("x"), List.of())
+                        .addILOAD("x")
+                        .addLDC_W(0)
+                        .addIADD()
+                        .addIRETURN()
+                );
+        var cache = new ProgramImageCache(directory);
+        var linked = cache.load(builder);
+        Assertions.assertTrue(cache.contains(builder.contentHash()));
+
+        var cached = cache.load(builder.contentHash(), () -> {
+            throw new AssertionError("Warm start must not link again");
+        });
+        Assertions.assertArrayEquals(linked.constantPool(), cached.constantPool());
+        Assertions.assertArrayEquals(linked.methodArea(), cached.methodArea());
+        Assertions.assertEquals(linked.constants(), cached.constants());
+        Assertions.assertEquals(linked.methods(), cached.methods());
+
+        var processor = new Processor(cached, "main");
+        processor.run();
+
+        Assertions.assertEquals(15, processor.stack.readBigEndianInt(0x00000000));
+
+        // The analysis comes back from the image, so compiling needs no decoding
+        var image = cache.loadImage(builder.contentHash(), () -> {
+            throw new AssertionError("Warm start must not link again");
+        });
+        Assertions.assertEquals(MethodAnalysis.analyzeAll(linked), image.analyses());
+        try (var manager = new ExecutionManager(image)
+                .invocationThreshold(1)
+                .compilerExecutor(Runnable::run)) {
+            Assertions.assertEquals(15, manager.run("main"));
+            Assertions.assertEquals(ExecutionManager.Tier.COMPILED, manager.tier("test"));
+        }
+
+        Assertions.assertTrue(cache.imagePath(builder.contentHash()).getFileName().toString().contains(".v" + ProgramImage.VERSION + "."));
+
+        var longName = new ProgramDefinition(new byte[0], new byte[0], Map.of("c".repeat(70_000), 0), Map.of());
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new ProgramImage(new byte[32], longName).write(directory.resolve("long.ijvmimg")));
+    }
+
+    @Test
+    public void loopProgramTest() {
+        var program = new ProgramDefinition.ProgramDefinitionBuilder()
+                .putConstant("limit", 4)
+                .addMethod("main", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of("i", "sum"))
+                        .addBIPUSH(0)
+                        .addISTORE("sum")
+                        .addIINC("i", 1)
+                        .addILOAD("sum")
+                        .addBIPUSH(3)
+                        .addIADD()
+                        .addISTORE("sum")
+                        .addILOAD("i")
+                        .addLDC_W("limit")
+                        .addIF_ICMPEQ(6)
+                        .addGOTO(-18)
+                        .addILOAD("sum")
+                        .addIRETURN()
+                )
+                .link();
+        var processor = new Processor(program, "main");
+        processor.run();
+
+        Assertions.assertEquals(12, processor.stack.readBigEndianInt(0x00000000));
+    }
+
+    @Test
+    public void generatedWorkloadTest() {
+        var workload = new WorkloadGenerator(42)
+                .methodCount(24)
+                .methodSize(200)
+                .callDepth(4)
+                .fanOut(2)
+                .loopNesting(2)
+                .loopTripCount(40)
+                .localVariables(130)
+                .constantPoolSize(300)
+                .generate();
+        var program = workload.builder().link();
+        var processor = new Processor(program, workload.entryMethod());
+        processor.run();
+
+        Assertions.assertEquals(workload.expectedResult(), processor.stack.readBigEndianInt(0x00000000));
+        Assertions.assertArrayEquals(workload.builder().contentHash(), new WorkloadGenerator(42)
+                .methodCount(24)
+                .methodSize(200)
+                .callDepth(4)
+                .fanOut(2)
+                .loopNesting(2)
+                .loopTripCount(40)
+                .localVariables(130)
+                .constantPoolSize(300)
+                .generate()
+                .builder()
+                .contentHash());
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new WorkloadGenerator(42)
+                .methodCount(2)
+                .callDepth(3)
+                .generate());
+    }
+
+    @Test
+    public void debuggerTest() {
+        var program = new ProgramDefinition.ProgramDefinitionBuilder()
+                .addMethod("main", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of("x"))
+                        .addDUP() // OBJREF
+                        .addBIPUSH(5)
+                        .addINVOKEVIRTUAL("test")
+                        .addISTORE("x")
+                        .addILOAD("x")
+                        .addIRETURN()
+                )
+                .addMethod("test", new ProgramDefinition.MethodBodyBuilder(List.of("x"), List.of("a"))
+                        .addBIPUSH(5)
+                        .addILOAD("x")
+                        .addIADD()
+                        .addISTORE("a")
+                        .addILOAD("a")
+                        .addIRETURN()
+                )
+                .link();
+        var processor = new Processor(program, "main");
+        var debugger = new Debugger(processor, program);
+        debugger.addBreakpoint("test", 2);
+        debugger.addWatchpoint("main", 1);
+
+        var event = debugger.resume();
+        Assertions.assertEquals(Debugger.StopReason.BREAKPOINT, event.reason());
+        Assertions.assertEquals("test", event.method());
+        Assertions.assertEquals(2, event.offset());
+        Assertions.assertEquals(5, debugger.readLocalVariable(1));
+
+        event = debugger.step();
+        Assertions.assertEquals(Debugger.StopReason.STEP, event.reason());
+        Assertions.assertEquals(4, event.offset());
+
+        event = debugger.stepOut();
+        Assertions.assertEquals(Debugger.StopReason.STEP, event.reason());
+        Assertions.assertEquals("main", event.method());
+        Assertions.assertEquals(6, event.offset());
+
+        event = debugger.resume();
+        Assertions.assertEquals(Debugger.StopReason.WATCHPOINT, event.reason());
+        Assertions.assertEquals(1, event.variableIndex());
+        Assertions.assertEquals(10, event.newValue());
+
+        Assertions.assertEquals(Debugger.StopReason.HALTED, debugger.resume().reason());
+        Assertions.assertEquals(10, processor.stack.readBigEndianInt(0x00000000));
+        Assertions.assertEquals(Instruction.ILOAD.getOpcode(), program.methodArea()[program.methods().get("test") + 6]);
+
+        processor = new Processor(program, "main");
+        debugger = new Debugger(processor, program);
+        debugger.step();
+        debugger.step();
+        event = debugger.stepOver();
+        Assertions.assertEquals(Debugger.StopReason.STEP, event.reason());
+        Assertions.assertEquals("main", event.method());
+        Assertions.assertEquals(6, event.offset());
+        Assertions.assertEquals(10, processor.stack.readBigEndianInt(processor.stackPointer.currentPointer()));
+    }
+
+    private static ProgramDefinition countDownProgram(int depth) {
+        var countDown = new ProgramDefinition.MethodBodyBuilder(List.of("n"), List.of())
+                .addILOAD("n")
+                .addIFEQ(17)
+                .addBIPUSH(0) // OBJREF
+                .addILOAD("n")
+                .addBIPUSH(1)
+                .addISUB()
+                .addINVOKEVIRTUAL("countDown")
+                .addBIPUSH(1)
+                .addIADD()
+                .addIRETURN()
+                .addBIPUSH(0)
+                .addIRETURN();
+
+        return new ProgramDefinition.ProgramDefinitionBuilder()
+                .putConstant("depth", depth)
+                .addMethod("main", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of())
+                        .addBIPUSH(0) // OBJREF
+                        .addLDC_W("depth")
+                        .addINVOKEVIRTUAL("countDown")
+                        .addIRETURN()
+                )
+                .addMethod("countDown", countDown)
+                .link();
+    }
+
+    private static ProgramDefinition stackOpsProgram() {
+        return new ProgramDefinition.ProgramDefinitionBuilder()
+                .addMethod("main", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of("x"))
+                        .addBIPUSH(6)
+                        .addDUP()
+                        .addBIPUSH(3)
+                        .addSWAP()
+                        .addISUB() // 3 - 6
+                        .addIFLT(4)
+                        .addNOP()
+                        .addBIPUSH(12)
+                        .addIAND() // 6 & 12
+                        .addDUP()
+                        .addBIPUSH(4)
+                        .addIF_ICMPEQ(4)
+                        .addPOP()
+                        .addBIPUSH(1)
+                        .addIOR()
+                        .addBIPUSH(9)
+                        .addPOP()
+                        .addISTORE("x")
+                        .addIINC("x", 10)
+                        .addILOAD("x")
+                        .addIRETURN()
+                )
+                .link();
+    }
+
+    @Test
+    public void deepRecursionStackTest() {
+        var stack = new StackMemory(1024, 1 << 20, true);
+        var processor = new Processor(countDownProgram(100_000), "main", stack);
+        processor.run();
+
+        Assertions.assertEquals(100_000, processor.stack.readBigEndianInt(0x00000000));
+        Assertions.assertTrue(stack.chunkCount() <= 2, "Chunks above the stack pointer must be released");
+
+        var overflowing = new Processor(countDownProgram(100_000), "main", new StackMemory(1024, 1 << 16, true));
+        Assertions.assertThrows(StackOverflowException.class, overflowing::run);
+    }
+
+    @Test
+    public void lockstepDivergenceTest() {
+        // Returns |x| * 2^n, lanes diverge on the sign of x and on the loop trip count
+        var program = new ProgramDefinition.ProgramDefinitionBuilder()
+                .addMethod("scale", new ProgramDefinition.MethodBodyBuilder(List.of("x", "n"), List.of("a"))
+                        .addILOAD("x")
+                        .addIFLT(8)
+                        .addILOAD("x")
+                        .addGOTO(8)
+                        .addBIPUSH(0)
+                        .addILOAD("x")
+                        .addISUB()
+                        .addISTORE("a")
+                        .addILOAD("n")
+                        .addIFEQ(16)
+                        .addILOAD("a")
+                        .addILOAD("a")
+                        .addIADD()
+                        .addISTORE("a")
+                        .addIINC("n", -1)
+                        .addGOTO(-15)
+                        .addILOAD("a")
+                        .addIRETURN()
+                )
+                .link();
+
+        var lanes = 101;
+        var arguments = new int[lanes][];
+        var expected = new int[lanes];
+        for (int lane = 0; lane < lanes; lane++) {
+            var x = lane * 37 - 1800;
+            var n = lane % 5;
+            arguments[lane] = new int[]{x, n};
+            expected[lane] = Math.abs(x) << n;
+        }
+
+        Assertions.assertArrayEquals(expected, new LockstepEngine(program, "scale").run(arguments));
+    }
+
+    @Test
+    public void stripUnreachableTest() {
+        var builder = new ProgramDefinition.ProgramDefinitionBuilder()
+                .putConstant("unused", 1)
+                .putConstant("two", 2)
+                .putConstant("seven", 7)
+                .addMethod("main", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of())
+                        .addBIPUSH(0) // OBJREF
+                        .addLDC_W(2) // seven
+                        .addINVOKEVIRTUAL("used")
+                        .addIRETURN()
+                )
+                .addMethod("unusedHelper", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of())
+                        .addLDC_W("unused")
+                        .addIRETURN()
+                )
+                .addMethod("used", new ProgramDefinition.MethodBodyBuilder(List.of("x"), List.of())
+                        .addILOAD("x")
+                        .addLDC_W("two")
+                        .addISUB()
+                        .addIRETURN()
+                );
+
+        var result = builder.stripUnreachable("main");
+        Assertions.assertEquals(1, result.removedMethods());
+        Assertions.assertEquals(1, result.removedConstants());
+        Assertions.assertEquals(builder.linkedSize(), result.sizeBefore());
+        Assertions.assertEquals(builder.link().constantPool().length + builder.link().methodArea().length, result.sizeBefore());
+        Assertions.assertEquals(8 + 8, result.sizeReduction());
+
+        var program = result.builder().link();
+        Assertions.assertEquals(List.of("two", "seven", "main", "used"), List.copyOf(program.constants().keySet()));
+        var processor = new Processor(program, "main");
+        processor.run();
+
+        Assertions.assertEquals(5, processor.stack.readBigEndianInt(0x00000000));
+    }
+
+    @Test
+    public void profileGuidedLayoutTest() {
+        var program = new ProgramDefinition.ProgramDefinitionBuilder()
+                .addMethod("main", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of())
+                        .addBIPUSH(0) // OBJREF
+                        .addBIPUSH(1)
+                        .addINVOKEVIRTUAL("hot")
+                        .addIFEQ(8)
+                        .addBIPUSH(7)
+                        .addGOTO(5)
+                        .addBIPUSH(9) // Never executed
+                        .addIRETURN()
+                )
+                .addMethod("cold", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of())
+                        .addBIPUSH(3)
+                        .addIRETURN()
+                )
+                .addMethod("hot", new ProgramDefinition.MethodBodyBuilder(List.of("x"), List.of())
+                        .addILOAD("x")
+                        .addIRETURN()
+                )
+                .link();
+        var profile = new ExecutionProfile(program);
+        profile.record(new Processor(program, "main"));
+        Assertions.assertEquals(1, profile.callCount("main", "hot"));
+        Assertions.assertEquals(0, profile.takenCount(program.methods().get("main") + 4 + 7));
+
+        var relinked = ProfileGuidedLayout.relink(profile);
+        Assertions.assertEquals(List.of("main", "hot", "cold"), List.copyOf(relinked.methods().keySet()));
+        Assertions.assertEquals(program.methodArea().length, relinked.methodArea().length);
+
+        var relinkedProfile = new ExecutionProfile(relinked);
+        var processor = new Processor(relinked, "main");
+        relinkedProfile.record(processor);
+
+        Assertions.assertEquals(7, processor.stack.readBigEndianInt(0x00000000));
+        Assertions.assertEquals(profile.totalInstructions() - 1, relinkedProfile.totalInstructions());
+    }
+
+    @Test
+    public void lazyLinkTest() {
+        var builder = new ProgramDefinition.ProgramDefinitionBuilder()
+                .putConstant("two", 2)
+                .addMethod("main", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of())
+                        .addBIPUSH(0) // OBJREF
+                        .addBIPUSH(9)
+                        .addINVOKEVIRTUAL("used")
+                        .addIRETURN()
+                )
+                .addMethod("unused", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of())
+                        .addBIPUSH(3)
+                        .addIRETURN()
+                )
+                .addMethod("used", new ProgramDefinition.MethodBodyBuilder(List.of("x"), List.of())
+                        .addILOAD("x")
+                        .addLDC_W("two")
+                        .addISUB()
+                        .addIRETURN()
+                );
+
+        var program = builder.linkLazily("main");
+        Assertions.assertEquals(List.of("main"), List.copyOf(program.linkedMethods().keySet()));
+
+        var processor = new Processor(program, "main");
+        processor.run();
+
+        Assertions.assertEquals(7, processor.stack.readBigEndianInt(0x00000000));
+        Assertions.assertTrue(program.isLinked("used"));
+        Assertions.assertFalse(program.isLinked("unused"));
+
+        var eager = builder.link();
+        var eagerProcessor = new Processor(eager, "main");
+        eagerProcessor.run();
+        Assertions.assertEquals(7, eagerProcessor.stack.readBigEndianInt(0x00000000));
+        Assertions.assertTrue(program.methodAreaSize() < eager.methodArea().length);
+        Assertions.assertEquals(LazyProgram.UNLINKED, program.snapshot().constantPool()[eager.constants().get("unused") + 3]);
+    }
+
+    @Test
+    public void jasAssemblerTest(@TempDir Path tempDir) throws IOException {
+        var source = """
+                .constant
+                    three 3
+                .end-constant
+
+                .main
+                .var
+                    total
+                .end-var
+                    BIPUSH 0 // OBJREF
+                    BIPUSH 4
+                    INVOKEVIRTUAL times
+                    ISTORE total
+                    ILOAD total
+                    IRETURN
+                .end-main
+
+                .method times(count)
+                .var
+                    sum
+                .end-var
+                loop:
+                    ILOAD count
+                    IFEQ done
+                    ILOAD sum
+                    LDC_W three
+                    IADD
+                    ISTORE sum
+                    IINC count -1
+                    GOTO loop
+                done: ILOAD sum
+                    IRETURN
+                .end-method
+                """;
+
+        var expected = new ProgramDefinition.ProgramDefinitionBuilder()
+                .putConstant("three", 3)
+                .addMethod("main", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of("total"))
+                        .addBIPUSH(0)
+                        .addBIPUSH(4)
+                        .addINVOKEVIRTUAL("times")
+                        .addISTORE("total")
+                        .addILOAD("total")
+                        .addIRETURN()
+                )
+                .addMethod("times", new ProgramDefinition.MethodBodyBuilder(List.of("count"), List.of("sum"))
+                        .addILOAD("count")
+                        .addIFEQ(17)
+                        .addILOAD("sum")
+                        .addLDC_W("three")
+                        .addIADD()
+                        .addISTORE("sum")
+                        .addIINC("count", -1)
+                        .addGOTO(-16)
+                        .addILOAD("sum")
+                        .addIRETURN()
+                )
+                .link();
+
+        var file = tempDir.resolve("times.jas");
+        Files.writeString(file, source);
+        for (var program : List.of(JasAssembler.assemble(source), JasAssembler.assemble(file))) {
+            Assertions.assertArrayEquals(expected.constantPool(), program.constantPool());
+            Assertions.assertArrayEquals(expected.methodArea(), program.methodArea());
+            Assertions.assertEquals(expected.constants(), program.constants());
+            Assertions.assertEquals(expected.methods(), program.methods());
+
+            var processor = new Processor(program, "main");
+            processor.run();
+            Assertions.assertEquals(12, processor.stack.readBigEndianInt(0x00000000));
+        }
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> JasAssembler.assemble(".main\nGOTO nowhere\n.end-main\n"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> JasAssembler.assemble(".main\nBREAKPOINT\n.end-main\n"));
+    }
+
+    @Test
+    public void tosCachingProcessorTest() {
+        var workload = new WorkloadGenerator(7)
+                .methodCount(12)
+                .methodSize(120)
+                .loopTripCount(10)
+                .localVariables(130)
+                .generate();
+        var stackOps = stackOpsProgram();
+
+        for (var program : List.of(workload.builder().link(), countDownProgram(1000), stackOps)) {
+            var entry = program.methods().containsKey(workload.entryMethod()) ? workload.entryMethod() : "main";
+            var plainStack = new StackMemory();
+            var plain = new Processor(program, entry, plainStack);
+            plain.run();
+            var cachingStack = new StackMemory();
+            var caching = new TosCachingProcessor(program, entry, cachingStack);
+            caching.run();
+
+            Assertions.assertEquals(plain.stackPointer.currentPointer(), caching.stackPointer.currentPointer());
+            Assertions.assertEquals(plain.localVariablePointer.currentPointer(), caching.localVariablePointer.currentPointer());
+            Assertions.assertEquals(plain.methodAreaPointer.currentPointer(), caching.methodAreaPointer.currentPointer());
+            // The whole region either processor wrote, including dead words above the stack pointer
+            var used = Math.max(plainStack.chunkCount(), cachingStack.chunkCount()) * StackMemory.DEFAULT_CHUNK_SIZE;
+            Assertions.assertTrue(used > plain.stackPointer.currentPointer());
+            for (int address = 0; address < used; address += MemoryPointer.WORD_SIZE) {
+                Assertions.assertEquals(plain.stack.readBigEndianInt(address), caching.stack.readBigEndianInt(address), "Stack word " + address);
+            }
+        }
+
+        var caching = new TosCachingProcessor(stackOps, "main");
+        caching.run();
+        Assertions.assertEquals(15, caching.stack.readBigEndianInt(0x00000000));
+    }
+
+    @Test
+    public void tieredExecutionTest() {
+        var program = countDownProgram(50);
+        try (var manager = new ExecutionManager(program)
+                .invocationThreshold(10)
+                .compilerExecutor(Runnable::run)) {
+            Assertions.assertEquals(50, manager.run("main"));
+            Assertions.assertEquals(ExecutionManager.Tier.COMPILED, manager.tier("countDown"));
+            Assertions.assertEquals(ExecutionManager.Tier.INTERPRETED, manager.tier("main"));
+            Assertions.assertEquals(51, manager.statistics("countDown").invocations());
+            Assertions.assertTrue(manager.statistics("countDown").compileNanos() > 0);
+        }
+
+        var workload = new WorkloadGenerator(11)
+                .methodCount(10)
+                .methodSize(100)
+                .loopTripCount(30)
+                .generate();
+        try (var manager = new ExecutionManager(workload.builder().link())
+                .backedgeThreshold(5)) {
+            for (int i = 0; i < 3; i++) {
+                Assertions.assertEquals(workload.expectedResult(), manager.run(workload.entryMethod()));
+            }
+
+            Assertions.assertTrue(manager.statistics().values().stream().anyMatch(statistics -> statistics.backedges() >= 5));
+        }
+    }
+
+    @Test
+    public void loopIdiomTest() {
+        var program = new ProgramDefinition.ProgramDefinitionBuilder()
+                .putConstant("times", 1_000_000_007)
+                .putConstant("factor", 123_456)
+                .putConstant("countdown", 2_000_000_000)
+                .addMethod("main", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of())
+                        .addBIPUSH(0) // OBJREF
+                        .addLDC_W("factor")
+                        .addLDC_W("times")
+                        .addINVOKEVIRTUAL("multiply")
+                        .addBIPUSH(0) // OBJREF
+                        .addLDC_W("countdown")
+                        .addINVOKEVIRTUAL("countDown")
+                        .addISUB()
+                        .addIRETURN()
+                )
+                // while (c != b) { r += a; c++; }
+                .addMethod("multiply", new ProgramDefinition.MethodBodyBuilder(List.of("a", "b"), List.of("c", "r"))
+                        .addBIPUSH(0)
+                        .addISTORE("c")
+                        .addBIPUSH(0)
+                        .addISTORE("r")
+                        .addILOAD("c")
+                        .addILOAD("b")
+                        .addIF_ICMPEQ(16)
+                        .addILOAD("r")
+                        .addILOAD("a")
+                        .addIADD()
+                        .addISTORE("r")
+                        .addIINC("c", 1)
+                        .addGOTO(-17)
+                        .addILOAD("r")
+                        .addIRETURN()
+                )
+                // while (n != 0) { s += 3; n--; }
+                .addMethod("countDown", new ProgramDefinition.MethodBodyBuilder(List.of("n"), List.of("s"))
+                        .addBIPUSH(0)
+                        .addISTORE("s")
+                        .addILOAD("n")
+                        .addIFEQ(12)
+                        .addIINC("s", 3)
+                        .addIINC("n", -1)
+                        .addGOTO(-11)
+                        .addILOAD("s")
+                        .addIRETURN()
+                )
+                .link();
+
+        Assertions.assertEquals(1, LoopIdiomRecognizer.recognize(program, "multiply").size());
+        Assertions.assertEquals(1, LoopIdiomRecognizer.recognize(program, "countDown").size());
+        Assertions.assertEquals(1, CompiledMethod.compile(program, "countDown").loopCount());
+
+        try (var manager = new ExecutionManager(program)
+                .invocationThreshold(1)
+                .compilerExecutor(Runnable::run)) {
+            Assertions.assertEquals(123_456 * 1_000_000_007 - 2_000_000_000 * 3, manager.run("main"));
+        }
+
+        // Even steps only reach limits with matching low bits, and do-while loops run at least once
+        var evenStep = new LoopIdiom(0, 0, 1, 6, new LoopIdiom.Value(false, 0), false, List.of());
+        Assertions.assertEquals(-1, evenStep.tripCount(1, 0));
+        Assertions.assertEquals(1L << 31, evenStep.tripCount(0, 0));
+        Assertions.assertEquals(3, evenStep.tripCount(-18, 0));
+
+        var workload = new WorkloadGenerator(5)
+                .methodCount(6)
+                .loopNesting(2)
+                .loopTripCount(50)
+                .localVariables(130)
+                .generate();
+        try (var manager = new ExecutionManager(workload.builder().link())
+                .invocationThreshold(1)
+                .compilerExecutor(Runnable::run)) {
+            Assertions.assertEquals(workload.expectedResult(), manager.run(workload.entryMethod()));
+        }
+
+        var generated = workload.builder().link();
+        Assertions.assertEquals(1, LoopIdiomRecognizer.recognize(generated, "method0").size());
+    }
+
+    @Test
+    public void parallelSpawnTest() {
+        var program = new ProgramDefinition.ProgramDefinitionBuilder()
+                .putConstant("first", 100)
+                .putConstant("second", 200)
+                .addMethod("main", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of())
+                        .addBIPUSH(0) // OBJREF
+                        .addLDC_W("first")
+                        .addSPAWN("countDown")
+                        .addBIPUSH(0) // OBJREF
+                        .addLDC_W("second")
+                        .addSPAWN("countDown")
+                        .addBIPUSH(0) // OBJREF
+                        .addSPAWN("pair")
+                        .addJOIN()
+                        .addSWAP()
+                        .addJOIN()
+                        .addIADD()
+                        .addSWAP()
+                        .addJOIN()
+                        .addIADD()
+                        .addIRETURN()
+                )
+                .addMethod("pair", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of())
+                        .addBIPUSH(0) // OBJREF
+                        .addBIPUSH(5)
+                        .addSPAWN("countDown")
+                        .addBIPUSH(0) // OBJREF
+                        .addBIPUSH(7)
+                        .addSPAWN("countDown")
+                        .addJOIN()
+                        .addSWAP()
+                        .addJOIN()
+                        .addIADD()
+                        .addIRETURN()
+                )
+                .addMethod("countDown", new ProgramDefinition.MethodBodyBuilder(List.of("n"), List.of())
+                        .addILOAD("n")
+                        .addIFEQ(17)
+                        .addBIPUSH(0) // OBJREF
+                        .addILOAD("n")
+                        .addBIPUSH(1)
+                        .addISUB()
+                        .addINVOKEVIRTUAL("countDown")
+                        .addBIPUSH(1)
+                        .addIADD()
+                        .addIRETURN()
+                        .addBIPUSH(0)
+                        .addIRETURN()
+                )
+                .link();
+
+        // Without threads every child runs inline on JOIN
+        var inline = new ParallelRuntime(0);
+        var processor = new Processor(program, "main");
+        processor.parallelRuntime = inline;
+        processor.run();
+        Assertions.assertEquals(312, processor.stack.readBigEndianInt(0));
+        Assertions.assertEquals(5, inline.inlinedChildren());
+        Assertions.assertEquals(0, inline.startedChildren());
+
+        for (var limit : new int[]{1, 2, 16}) {
+            var runtime = new ParallelRuntime(limit);
+            processor = new Processor(program, "main");
+            processor.parallelRuntime = runtime;
+            processor.run();
+            Assertions.assertEquals(312, processor.stack.readBigEndianInt(0));
+            Assertions.assertEquals(5, runtime.inlinedChildren() + runtime.startedChildren());
+        }
+
+        Assertions.assertThrows(IllegalStateException.class, () -> new Processor(program, "main").run());
+    }
+
+    @Test
+    public void allocationFreeInterpreterTest() {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assertions.assertTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        var workload = new WorkloadGenerator(13)
+                .methodCount(8)
+                .methodSize(100)
+                .loopTripCount(20)
+                .localVariables(130)
+                .generate();
+        var programs = List.of(workload.builder().link(), countDownProgram(1000), stackOpsProgram());
+        for (var program : programs) {
+            var entry = program.methods().containsKey(workload.entryMethod()) ? workload.entryMethod() : "main";
+            // Default stack, which keeps the chunks of the deep countDown calls between runs
+            var processor = new Processor(program, entry);
+            for (int i = 0; i < 2_000; i++) {
+                processor.reset();
+                processor.run();
+            }
+
+            var expected = processor.stack.readBigEndianInt(0);
+            var before = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < 100; i++) {
+                processor.reset();
+                processor.run();
+            }
+            var allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+            Assertions.assertEquals(expected, processor.stack.readBigEndianInt(0));
+            Assertions.assertEquals(0, allocated, "Interpreter allocated while running " + entry);
+        }
+    }
+
+    @Test
+    public void backwardGotoAndWideIincTest() {
+        // i = 0; do { i++; } while (i != 3); GOTO offsets count from the GOTO opcode
+        var loop = new ProgramDefinition.ProgramDefinitionBuilder()
+                .addMethod("main", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of("i"))
+                        .addBIPUSH(0)
+                        .addISTORE("i")
+                        .addIINC("i", 1)
+                        .addILOAD("i")
+                        .addBIPUSH(3)
+                        .addIF_ICMPEQ(6)
+                        .addGOTO(-10)
+                        .addILOAD("i")
+                        .addIRETURN()
+                )
+                .link();
+        var processor = new Processor(loop, "main");
+        var finished = false;
+        for (int i = 0; i < 100 && !finished; i++) {
+            finished = processor.tick();
+        }
+
+        Assertions.assertTrue(finished);
+        Assertions.assertEquals(3, processor.stack.readBigEndianInt(0x00000000));
+
+        // WIDE IINC reads its constant behind the two index bytes, index 299 is 0x012B
+        var locals = new ArrayList<String>();
+        for (int i = 0; i < 300; i++) {
+            locals.add("l" + i);
+        }
+
+        var wide = new ProgramDefinition.ProgramDefinitionBuilder()
+                .addMethod("main", new ProgramDefinition.MethodBodyBuilder(List.of(), locals)
+                        .addBIPUSH(5)
+                        .addISTORE("l299")
+                        .addIINC("l299", 7)
+                        .addIINC("l299", -2)
+                        .addILOAD("l299")
+                        .addIRETURN()
+                )
+                .link();
+        processor = new Processor(wide, "main");
+        processor.run();
+
+        Assertions.assertEquals(10, processor.stack.readBigEndianInt(0x00000000));
+    }
+
+    @Test
+    public void biasedBranchLayoutTest() {
+        // for (n = iterations; n != 0; n--) { if (3 - n >= 0) r++; s++; }, the r++ side runs 3 times
+        var program = new ProgramDefinition.ProgramDefinitionBuilder()
+                .putConstant("iterations", 10_000)
+                .addMethod("main", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of("n", "s", "r"))
+                        .addBIPUSH(0)
+                        .addISTORE("s")
+                        .addBIPUSH(0)
+                        .addISTORE("r")
+                        .addLDC_W("iterations")
+                        .addISTORE("n")
+                        .addILOAD("n")
+                        .addIFEQ(23)
+                        .addBIPUSH(3)
+                        .addILOAD("n")
+                        .addISUB()
+                        .addIFLT(6)
+                        .addIINC("r", 1) // Rarely executed
+                        .addIINC("s", 1)
+                        .addIINC("n", -1)
+                        .addGOTO(-22)
+                        .addILOAD("s")
+                        .addILOAD("r")
+                        .addIADD()
+                        .addIRETURN()
+                )
+                .link();
+        var profile = new ExecutionProfile(program);
+        profile.record(new Processor(program, "main"));
+
+        var relinked = ProfileGuidedLayout.relink(profile);
+        var relinkedProfile = new ExecutionProfile(relinked);
+        var processor = new Processor(relinked, "main");
+        relinkedProfile.record(processor);
+
+        Assertions.assertEquals(10_003, processor.stack.readBigEndianInt(0x00000000));
+
+        // The loop is rotated so its hot side falls through into the IFLT that closes it, the rare side follows
+        var instructions = new BytecodeDecoder(relinked).decodeMethod(relinked.methods().get("main"));
+        var rare = -1;
+        var test = -1;
+        for (int i = 0; i < instructions.size(); i++) {
+            var instruction = instructions.get(i);
+            if (instruction.instruction() == Instruction.IINC && instruction.increment() == 1 && instruction.operand() == 3) {
+                rare = i;
+            } else if (instruction.instruction() == Instruction.IFLT) {
+                test = i;
+            }
+        }
+
+        Assertions.assertTrue(instructions.get(test).operand() < 0);
+        Assertions.assertTrue(rare > test);
+        Assertions.assertTrue(relinkedProfile.totalInstructions() < profile.totalInstructions() - 9_900);
+    }
+
+    @Test
+    public void endlessLoopFallbackTest() {
+        var program = new ProgramDefinition.ProgramDefinitionBuilder()
+                .addMethod("main", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of("c"))
+                        .addBIPUSH(0)
+                        .addISTORE("c")
+                        .addBIPUSH(5)
+                        .addBIPUSH(3)
+                        .addIADD()
+                        .addIRETURN()
+                )
+                .link();
+
+        // A loop at the IADD that never terminates: an even step never closes an odd distance
+        var codeStart = program.methods().get("main") + 4;
+        var analysis = MethodAnalysis.analyze(program, "main");
+        var endless = new LoopIdiom(codeStart + 8, codeStart + 9, 1, 2, new LoopIdiom.Value(false, 1), true, List.of());
+        var compiled = CompiledMethod.compile(program, "main", new MethodAnalysis(analysis.codeEnd(), analysis.instructions(), List.of(endless)));
+        Assertions.assertEquals(1, compiled.loopCount());
+
+        // The fallback replays the IADD it replaced, twice to see that the shared code is left alone
+        for (int i = 0; i < 2; i++) {
+            var processor = new Processor(program, "main");
+            compiled.execute(processor);
+            processor.run();
+            Assertions.assertEquals(8, processor.stack.readBigEndianInt(0x00000000));
+        }
+    }
+
+    @Test
+    public void lockstepUnsupportedInstructionTest() {
+        var locals = new ArrayList<String>();
+        for (int i = 0; i < 130; i++) {
+            locals.add("v" + i);
+        }
+
+        var program = new ProgramDefinition.ProgramDefinitionBuilder()
+                .addMethod("one", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of())
+                        .addBIPUSH(1)
+                        .addIRETURN()
+                )
+                .addMethod("call", new ProgramDefinition.MethodBodyBuilder(List.of(), List.of())
+                        .addBIPUSH(0)
+                        .addINVOKEVIRTUAL("one")
+                        .addIRETURN()
+                )
+                .addMethod("wide", new ProgramDefinition.MethodBodyBuilder(List.of(), locals)
+                        .addBIPUSH(7)
+                        .addISTORE("v129")
+                        .addILOAD("v129")
+                        .addIRETURN()
+                )
+                .link();
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new LockstepEngine(program, "call"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new LockstepEngine(program, "wide"));
+        Assertions.assertArrayEquals(new int[]{1, 1}, new LockstepEngine(program, "one").run(new int[2][0]));
+    }
 }